@@ -0,0 +1,91 @@
+import embs.bench.EncoderDriver;
+import ptolemy.kernel.CompositeEntity;
+import ptolemy.kernel.util.IllegalActionException;
+import ptolemy.kernel.util.NamedObj;
+import ptolemy.kernel.util.Settable;
+
+/**
+ * Default package side of {@link EncoderDriver}, gives the benchmarks access to
+ * the protected encoder and counter methods.
+ */
+public class BenchmarkDriver implements EncoderDriver {
+
+    private int                       busWidth;
+    private BusEncoder                encoder;
+    private BusInvertEncoder          busInvertEncoder;
+    private TransitionActivityCounter counter;
+
+    @Override
+    public void setup(String scheme, int busWidth) throws Exception {
+        this.busWidth = busWidth;
+
+        // Plain kernel container, the actors never get a director
+        CompositeEntity holder = new CompositeEntity();
+
+        if (scheme.equals(TraceEvaluator.XOR)) {
+            encoder = new XorEncoder(holder, "encoder");
+        } else if (scheme.equals(TraceEvaluator.BUS_INVERT)) {
+            encoder = new BusInvertEncoder(holder, "encoder");
+        } else if (scheme.equals(TraceEvaluator.BYTE_BUS_INVERT)) {
+            encoder = new ByteBusInvertEncoder(holder, "encoder");
+        } else {
+            throw new IllegalArgumentException("Unknown encoder scheme: " + scheme);
+        }
+        setBusWidth(encoder);
+        encoder.resetEncoderState();
+
+        busInvertEncoder = new BusInvertEncoder(holder, "busInvertEncoder");
+        setBusWidth(busInvertEncoder);
+        busInvertEncoder.resetEncoderState();
+
+        counter = new TransitionActivityCounter(holder, "counter");
+        setBusWidth(counter);
+        counter.resetCounterState();
+    }
+
+    private void setBusWidth(NamedObj actor) throws IllegalActionException {
+        ((Settable) actor.getAttribute("Bus Width")).setExpression(String.valueOf(busWidth));
+    }
+
+    @Override
+    public long[] advance(long[] word) {
+        return encoder.advance(word);
+    }
+
+    @Override
+    public String advance(String word) {
+        String encoded = encoder.encode(word);
+
+        // Move the encoder state on, so the next word is encoded against this one
+        BusWord.parse(encoded, busWidth, encoder.previousBusState);
+        BusWord.parse(word, busWidth, encoder.previousBusStateUnencoded);
+
+        return encoded;
+    }
+
+    @Override
+    public String format(long word) {
+        return BusWord.format(new long[] { word }, busWidth);
+    }
+
+    @Override
+    public int busInvertEncoderDistance(String before, String after) {
+        return busInvertEncoder.calculateHammingDistance(before, after);
+    }
+
+    @Override
+    public int busInvertEncoderDistance(long[] before, long[] after) {
+        return busInvertEncoder.calculateHammingDistance(before, after);
+    }
+
+    @Override
+    public int transitionActivityCounterDistance(String before, String after) {
+        return counter.calculateHammingDistance(before, after);
+    }
+
+    @Override
+    public int transitionActivityCounterDistance(long[] before, long[] after) {
+        return counter.calculateHammingDistance(before, after);
+    }
+
+}
@@ -0,0 +1,121 @@
+package embs.bench;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.StringTokenizer;
+
+/**
+ * Input word streams shared by the benchmarks.
+ * <ul>
+ * <li>sequential: an incrementing counter, as on an address bus during a
+ * linear fetch</li>
+ * <li>random: uniformly random words from a fixed seed</li>
+ * <li>memory: the data column of memory.txt in file order, i.e. the words the
+ * data bus carries when the program is fetched. 16-bit words are concatenated
+ * to fill wider buses.</li>
+ * </ul>
+ * The memory file defaults to ../memory.txt and can be changed with the
+ * "memory.file" system property.
+ */
+public final class BenchmarkInputs {
+
+    public static final String SEQUENTIAL = "sequential";
+    public static final String RANDOM     = "random";
+    public static final String MEMORY     = "memory";
+
+    // Fixed seed so runs are comparable
+    private static final long RANDOM_SEED = 0x454D4253L;
+
+    // Width of the words stored in memory.txt
+    private static final int MEMORY_WORD_WIDTH = 16;
+
+    private BenchmarkInputs() {
+    }
+
+    /**
+     * Returns count words of the given kind, masked to the bus width.
+     */
+    public static long[] words(String kind, int busWidth, int count) throws IOException {
+        long mask = busWidth == Long.SIZE ? -1L : (1L << busWidth) - 1;
+        long[] words = new long[count];
+
+        if (kind.equals(SEQUENTIAL)) {
+            for (int wordIndex = 0; wordIndex < count; wordIndex++) {
+                words[wordIndex] = wordIndex & mask;
+            }
+        } else if (kind.equals(RANDOM)) {
+            Random random = new Random(RANDOM_SEED);
+            for (int wordIndex = 0; wordIndex < count; wordIndex++) {
+                words[wordIndex] = random.nextLong() & mask;
+            }
+        } else if (kind.equals(MEMORY)) {
+            long[] memoryWords = readMemoryWords();
+            int position = 0;
+
+            for (int wordIndex = 0; wordIndex < count; wordIndex++) {
+                // Concatenate 16-bit memory words until the bus is filled
+                long word = 0;
+                for (int filled = 0; filled < busWidth; filled += MEMORY_WORD_WIDTH) {
+                    word = (word << MEMORY_WORD_WIDTH) | memoryWords[position];
+                    position = (position + 1) % memoryWords.length;
+                }
+                words[wordIndex] = word & mask;
+            }
+        } else {
+            throw new IllegalArgumentException("Unknown input kind: " + kind);
+        }
+
+        return words;
+    }
+
+    /**
+     * Returns the words as packed single-element bus words.
+     */
+    public static long[][] packed(long[] words) {
+        long[][] packed = new long[words.length][1];
+        for (int wordIndex = 0; wordIndex < words.length; wordIndex++) {
+            packed[wordIndex][0] = words[wordIndex];
+        }
+        return packed;
+    }
+
+    /**
+     * Returns the words as binary strings, formatted by the driver.
+     */
+    public static String[] strings(long[] words, EncoderDriver driver) {
+        String[] strings = new String[words.length];
+        for (int wordIndex = 0; wordIndex < words.length; wordIndex++) {
+            strings[wordIndex] = driver.format(words[wordIndex]);
+        }
+        return strings;
+    }
+
+    private static long[] readMemoryWords() throws IOException {
+        List<Long> memoryWords = new ArrayList<Long>();
+
+        BufferedReader reader = new BufferedReader(new FileReader(System.getProperty("memory.file", "../memory.txt")));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // storage type data address time, the data column is what is driven
+                StringTokenizer st = new StringTokenizer(line);
+                st.nextToken();
+                st.nextToken();
+                memoryWords.add(Long.parseLong(st.nextToken()) & 0xFFFFL);
+            }
+        } finally {
+            reader.close();
+        }
+
+        long[] words = new long[memoryWords.size()];
+        for (int wordIndex = 0; wordIndex < words.length; wordIndex++) {
+            words[wordIndex] = memoryWords.get(wordIndex);
+        }
+        return words;
+    }
+
+}
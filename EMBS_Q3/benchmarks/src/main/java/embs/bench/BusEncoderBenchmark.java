@@ -0,0 +1,76 @@
+package embs.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Throughput of encode() for each BusEncoder subclass, on the packed path used
+ * by fire() and on the legacy string path. Each invocation encodes a batch of
+ * words, so the reported time and allocation (with -prof gc) are per word. On
+ * both paths every word becomes the encoder's previous state, so each one is
+ * encoded against the word before it, as on a running bus.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BusEncoderBenchmark {
+
+    // Words encoded per invocation
+    private static final int WORDS = 4096;
+
+    @Param({ "xor", "bus-invert", "byte-bus-invert" })
+    public String scheme;
+
+    @Param({ "8", "16", "32", "64" })
+    public int busWidth;
+
+    @Param({ BenchmarkInputs.SEQUENTIAL, BenchmarkInputs.RANDOM, BenchmarkInputs.MEMORY })
+    public String input;
+
+    private EncoderDriver driver;
+    private long[][]      packedWords;
+    private String[]      stringWords;
+
+    @Setup
+    public void setup() throws Exception {
+        driver = EncoderDriver.load();
+        driver.setup(scheme, busWidth);
+
+        long[] words = BenchmarkInputs.words(input, busWidth, WORDS);
+        packedWords = BenchmarkInputs.packed(words);
+        stringWords = BenchmarkInputs.strings(words, driver);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WORDS)
+    public void encodePacked(Blackhole blackhole) {
+        for (int wordIndex = 0; wordIndex < WORDS; wordIndex++) {
+            blackhole.consume(driver.advance(packedWords[wordIndex]));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WORDS)
+    public void encodeString(Blackhole blackhole) {
+        for (int wordIndex = 0; wordIndex < WORDS; wordIndex++) {
+            blackhole.consume(driver.advance(stringWords[wordIndex]));
+        }
+    }
+
+}
@@ -0,0 +1,48 @@
+package embs.bench;
+
+/**
+ * Access to the Question 3 actors from the benchmarks. The actors live in the
+ * default package, which named packages cannot refer to, so the benchmarks go
+ * through this interface and the default package BenchmarkDriver implements
+ * it. Only setup is reflective, the measured calls are plain interface calls.
+ */
+public interface EncoderDriver {
+
+    /**
+     * Creates the encoder for the scheme name used by TraceEvaluator, plus a
+     * bus-invert encoder and an activity counter, all of the given width.
+     */
+    void setup(String scheme, int busWidth) throws Exception;
+
+    /**
+     * Encodes a packed word and makes it the previous state.
+     */
+    long[] advance(long[] word);
+
+    /**
+     * Encodes a binary string through the legacy string path and makes it the
+     * previous state, as fire() did before the packed representation.
+     */
+    String advance(String word);
+
+    /**
+     * Formats a word as a binary string of the bus width.
+     */
+    String format(long word);
+
+    int busInvertEncoderDistance(String before, String after);
+
+    int busInvertEncoderDistance(long[] before, long[] after);
+
+    int transitionActivityCounterDistance(String before, String after);
+
+    int transitionActivityCounterDistance(long[] before, long[] after);
+
+    /**
+     * Loads the default package implementation.
+     */
+    static EncoderDriver load() throws Exception {
+        return (EncoderDriver) Class.forName("BenchmarkDriver").getDeclaredConstructor().newInstance();
+    }
+
+}
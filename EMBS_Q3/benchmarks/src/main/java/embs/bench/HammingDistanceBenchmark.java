@@ -0,0 +1,96 @@
+package embs.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of calculateHammingDistance in BusInvertEncoder and
+ * TransitionActivityCounter between consecutive words of the input, for both
+ * the string and the packed forms. Reported per word.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HammingDistanceBenchmark {
+
+    // Word pairs compared per invocation
+    private static final int WORDS = 4096;
+
+    @Param({ "8", "16", "32", "64" })
+    public int busWidth;
+
+    @Param({ BenchmarkInputs.SEQUENTIAL, BenchmarkInputs.RANDOM, BenchmarkInputs.MEMORY })
+    public String input;
+
+    private EncoderDriver driver;
+    private long[][]      packedWords;
+    private String[]      stringWords;
+
+    @Setup
+    public void setup() throws Exception {
+        driver = EncoderDriver.load();
+        driver.setup("bus-invert", busWidth);
+
+        long[] words = BenchmarkInputs.words(input, busWidth, WORDS + 1);
+        packedWords = BenchmarkInputs.packed(words);
+        stringWords = BenchmarkInputs.strings(words, driver);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WORDS)
+    public int busInvertEncoderString() {
+        int transitions = 0;
+        for (int wordIndex = 0; wordIndex < WORDS; wordIndex++) {
+            transitions += driver.busInvertEncoderDistance(stringWords[wordIndex], stringWords[wordIndex + 1]);
+        }
+        return transitions;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WORDS)
+    public int busInvertEncoderPacked() {
+        int transitions = 0;
+        for (int wordIndex = 0; wordIndex < WORDS; wordIndex++) {
+            transitions += driver.busInvertEncoderDistance(packedWords[wordIndex], packedWords[wordIndex + 1]);
+        }
+        return transitions;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WORDS)
+    public int transitionActivityCounterString() {
+        int transitions = 0;
+        for (int wordIndex = 0; wordIndex < WORDS; wordIndex++) {
+            transitions += driver.transitionActivityCounterDistance(stringWords[wordIndex],
+                    stringWords[wordIndex + 1]);
+        }
+        return transitions;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(WORDS)
+    public int transitionActivityCounterPacked() {
+        int transitions = 0;
+        for (int wordIndex = 0; wordIndex < WORDS; wordIndex++) {
+            transitions += driver.transitionActivityCounterDistance(packedWords[wordIndex],
+                    packedWords[wordIndex + 1]);
+        }
+        return transitions;
+    }
+
+}
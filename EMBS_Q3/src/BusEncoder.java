@@ -1,17 +1,26 @@
-import java.util.Arrays;
-
 import ptolemy.actor.TypedAtomicActor;
 import ptolemy.actor.TypedIOPort;
+import ptolemy.data.BooleanToken;
 import ptolemy.data.StringToken;
 import ptolemy.data.Token;
+import ptolemy.data.expr.Parameter;
 import ptolemy.data.expr.StringParameter;
 import ptolemy.data.type.BaseType;
 import ptolemy.kernel.CompositeEntity;
+import ptolemy.kernel.util.Attribute;
 import ptolemy.kernel.util.IllegalActionException;
 import ptolemy.kernel.util.NameDuplicationException;
 
 /**
  * An abstract base for bus encoders.
+ * <p>
+ * Bus states are held internally as packed words (see {@link BusWord}). By
+ * default the ports carry {@code '0'/'1'} strings, setting the "Packed Bus
+ * State" parameter switches the output to the packed token type so that no
+ * strings are built or parsed between packed actors.
+ * <p>
+ * Subclasses implement the packed {@code encode} method, the String one is
+ * bridged to it.
  */
 @SuppressWarnings("serial")
 public abstract class BusEncoder extends TypedAtomicActor {
@@ -21,15 +30,20 @@ public abstract class BusEncoder extends TypedAtomicActor {
 
     // Parameters
     private StringParameter busWidthParameter;
+    protected Parameter     packedParameter;
 
     // State and configuration information
-    protected String previousBusState;
-    protected String previousBusStateUnencoded;
-    protected int    busWidth;
+    protected long[]  previousBusState;
+    protected long[]  previousBusStateUnencoded;
+    protected int     busWidth;
+    protected boolean packed;
+
+    // Scratch words reused on every fire
+    protected long[] newBusState;
+    protected long[] newEncodedBusState;
 
     // Static default values
-    protected static final int  DEFAULT_CHANNEL   = 0;
-    protected static final char DEFAULT_BUS_STATE = '0';
+    protected static final int DEFAULT_CHANNEL = 0;
 
     public BusEncoder(CompositeEntity container, String name) throws IllegalActionException, NameDuplicationException {
         super(container, name);
@@ -45,36 +59,118 @@ public abstract class BusEncoder extends TypedAtomicActor {
         // Create parameter for bus width
         busWidthParameter = new StringParameter(this, "Bus Width");
         busWidthParameter.setExpression("16");
+
+        // Create parameter for the packed port representation, off by default
+        packedParameter = new Parameter(this, "Packed Bus State");
+        packedParameter.setTypeEquals(BaseType.BOOLEAN);
+        packedParameter.setExpression("false");
+    }
+
+    @Override
+    public void attributeChanged(Attribute attribute) throws IllegalActionException {
+        if ((attribute == packedParameter || attribute == busWidthParameter) && packedParameter != null) {
+            // Port types depend on both the representation and the bus width
+            busWidth = Integer.valueOf(busWidthParameter.getExpression());
+            packed = ((BooleanToken) packedParameter.getToken()).booleanValue();
+            updatePortTypes();
+        } else {
+            super.attributeChanged(attribute);
+        }
+    }
+
+    /**
+     * Updates the port types for the current representation, should be
+     * overridden if port encodings change.
+     */
+    protected void updatePortTypes() {
+        if (packed) {
+            // Packed actors still accept strings on their input
+            inputPortBusState.setTypeEquals(BaseType.UNKNOWN);
+            inputPortBusState.setTypeAtMost(BaseType.GENERAL);
+            outputPortBusStateEncoded.setTypeEquals(BusWord.tokenType(busWidth));
+        } else {
+            inputPortBusState.setTypeEquals(BaseType.STRING);
+            outputPortBusStateEncoded.setTypeEquals(BaseType.STRING);
+        }
     }
 
     @Override
     public void initialize() throws IllegalActionException {
         super.initialize();
 
-        // Handle bus width parameter
+        // Reset the encoder to its default state
+        resetEncoderState();
+    }
+
+    /**
+     * Resets the encoder to its default state, all lines low, without touching
+     * the ports. Called from {@link #initialize()}, and used directly when the
+     * encoder is driven without a director (see {@link TraceEvaluator}).
+     * Should be overridden by encoders that hold extra state.
+     */
+    protected void resetEncoderState() throws IllegalActionException {
+        // Handle bus width and representation parameters
         busWidth = Integer.valueOf(busWidthParameter.getExpression());
+        packed = ((BooleanToken) packedParameter.getToken()).booleanValue();
 
-        // Fill default bus state
-        char[] busDefaultStateArray = new char[busWidth];
-        Arrays.fill(busDefaultStateArray, DEFAULT_BUS_STATE);
-        String defaultBusState = new String(busDefaultStateArray);
+        // Set previous bus state to default, all lines low
+        previousBusState = BusWord.create(busWidth);
+        previousBusStateUnencoded = BusWord.create(busWidth);
 
-        // Set previous bus state to default
-        previousBusState = defaultBusState;
-        previousBusStateUnencoded = defaultBusState;
+        // Allocate scratch words
+        newBusState = BusWord.create(busWidth);
+        newEncodedBusState = BusWord.create(busWidth);
     }
 
     /**
-     * Performs encoding of some kind and returns the encoded bus state.
+     * Performs encoding of some kind on a packed bus state, writing the encoded
+     * state into the given word.
      */
-    protected abstract String encode(String newBusStateString);
+    protected abstract void encode(long[] newBusState, long[] encodedBusState);
+
+    /**
+     * Performs encoding of some kind and returns the encoded bus state,
+     * bridged to {@link #encode(long[], long[])}.
+     */
+    protected String encode(String newBusStateString) {
+        long[] unencoded = BusWord.create(busWidth);
+        long[] encoded = BusWord.create(busWidth);
+
+        BusWord.parse(newBusStateString, busWidth, unencoded);
+        encode(unencoded, encoded);
+
+        return BusWord.format(encoded, busWidth);
+    }
 
     /**
      * Updates output ports, should be overridden if ports encodings change.
      */
-    protected void updateOutputPorts(String newEncodedBusState) throws IllegalActionException {
-        // Send output
-        outputPortBusStateEncoded.send(DEFAULT_CHANNEL, new StringToken(newEncodedBusState));
+    protected void updateOutputPorts(long[] newEncodedBusState) throws IllegalActionException {
+        // Send output in the configured representation
+        if (packed) {
+            outputPortBusStateEncoded.send(DEFAULT_CHANNEL, BusWord.toToken(newEncodedBusState, busWidth));
+        } else {
+            outputPortBusStateEncoded.send(DEFAULT_CHANNEL,
+                    new StringToken(BusWord.format(newEncodedBusState, busWidth)));
+        }
+    }
+
+    /**
+     * Encodes a packed bus state and makes it the previous state. The returned
+     * word belongs to the encoder and is only valid until the next call.
+     */
+    protected long[] advance(long[] newBusState) {
+        // Run encoding
+        encode(newBusState, newEncodedBusState);
+
+        // Update previous state by swapping with the scratch word
+        long[] swap = previousBusState;
+        previousBusState = newEncodedBusState;
+        newEncodedBusState = swap;
+
+        System.arraycopy(newBusState, 0, previousBusStateUnencoded, 0, newBusState.length);
+
+        return previousBusState;
     }
 
     @Override
@@ -83,20 +179,15 @@ public abstract class BusEncoder extends TypedAtomicActor {
 
         // If our input port has a value
         if (inputPortBusState.hasToken(DEFAULT_CHANNEL)) {
-            // Get the input binary string
-            Token newBusState = inputPortBusState.get(DEFAULT_CHANNEL);
-            String newBusStateString = ((StringToken) newBusState).stringValue();
-            
+            // Read the input, binary string or packed, into the scratch word
+            Token newBusStateToken = inputPortBusState.get(DEFAULT_CHANNEL);
+            BusWord.fromToken(newBusStateToken, busWidth, newBusState);
 
-            // Run encoding
-            String newEncodedBusState = encode(newBusStateString);
+            // Run encoding and update previous state
+            long[] encodedBusState = advance(newBusState);
 
             // Outdate all output ports
-            updateOutputPorts(newEncodedBusState);
-
-            // Update previous state
-            previousBusState = newEncodedBusState;
-            previousBusStateUnencoded = newBusStateString;
+            updateOutputPorts(encodedBusState);
         }
     }
 
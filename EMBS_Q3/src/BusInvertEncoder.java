@@ -1,4 +1,5 @@
 import ptolemy.actor.TypedIOPort;
+import ptolemy.data.LongToken;
 import ptolemy.data.StringToken;
 import ptolemy.data.type.BaseType;
 import ptolemy.kernel.CompositeEntity;
@@ -11,25 +12,18 @@ import ptolemy.kernel.util.NameDuplicationException;
 @SuppressWarnings("serial")
 public class BusInvertEncoder extends BusEncoder {
 
-    /**
-     * A container class for encode results.
-     */
-    protected static class EncodeResult {
-        public boolean busIsInverted;
-        public String  busState;
-
-        public EncodeResult(boolean busIsInverted, String busState) {
-            this.busIsInverted = busIsInverted;
-            this.busState = busState;
-        }
-    }
-
     // State information
     private boolean busIsInvertedState;
 
     // New output port for inversion state
     protected TypedIOPort outputPortBusInvert;
 
+    // Shared tokens for the single invert line, avoids a new token per fire
+    private static final StringToken INVERTED_STRING_TOKEN     = new StringToken("1");
+    private static final StringToken NOT_INVERTED_STRING_TOKEN = new StringToken("0");
+    private static final LongToken   INVERTED_PACKED_TOKEN     = new LongToken(1);
+    private static final LongToken   NOT_INVERTED_PACKED_TOKEN = new LongToken(0);
+
     public BusInvertEncoder(CompositeEntity container, String name)
             throws IllegalActionException, NameDuplicationException {
         super(container, name);
@@ -39,15 +33,26 @@ public class BusInvertEncoder extends BusEncoder {
 
         // Set type for new output port
         outputPortBusInvert.setTypeEquals(BaseType.STRING);
+
+        // Port types may have been set before the new port existed
+        updatePortTypes();
     }
 
     /**
-     * Invert's the bus state. This is done using textual replacement as it is the
-     * fastest way to implement this in Java, given our input is a string.
+     * Returns the number of invert lines driven by this encoder.
      */
-    protected String invertBusState(String busState) {
-        // '?' Acts as an intermediary so that we don't end up with all zeros.
-        return busState.replace('0', '?').replace('1', '0').replace('?', '1');
+    protected int invertLineCount() {
+        return 1;
+    }
+
+    @Override
+    protected void updatePortTypes() {
+        super.updatePortTypes();
+
+        // The invert port follows the same representation as the bus
+        if (outputPortBusInvert != null) {
+            outputPortBusInvert.setTypeEquals(packed ? BusWord.tokenType(invertLineCount()) : BaseType.STRING);
+        }
     }
 
     /**
@@ -74,25 +79,42 @@ public class BusInvertEncoder extends BusEncoder {
     }
 
     /**
-     * Perform bus invert encoding on the input state, given the previous state and
-     * bus invert state.
+     * Calculate the hamming distance between two packed bus states of the same
+     * width.
      */
-    protected EncodeResult busInvertEncode(String newBusState, String previousBusState, boolean busIsInverted) {
-        // Calculate hamming distances for invert and non-invert
-        int nonInvertedHammingDistance = calculateHammingDistance(previousBusState, newBusState);
-        int invertedHammingDistance = calculateHammingDistance(previousBusState, invertBusState(newBusState));
+    protected int calculateHammingDistance(long[] before, long[] after) {
+        return BusWord.hammingDistance(before, after);
+    }
+
+    /**
+     * Perform bus invert encoding on lines [fromLine, toLine) of the input state,
+     * given the previous state and bus invert state. The encoded lines are
+     * written to encodedBusState and the new bus invert state is returned.
+     */
+    protected boolean busInvertEncode(long[] newBusState, long[] previousBusState, long[] encodedBusState,
+            int fromLine, int toLine, boolean busIsInverted) {
+        // Calculate hamming distances for invert and non-invert, inverting flips
+        // every line so the inverted distance is the complement
+        int nonInvertedHammingDistance = BusWord.hammingDistance(previousBusState, newBusState, fromLine, toLine);
+        int invertedHammingDistance = (toLine - fromLine) - nonInvertedHammingDistance;
 
         boolean inversionStateNeedsChange = false;
-        String resultBusState = newBusState;
+        boolean invertResult = false;
 
         // Compare hamming distances
         if (nonInvertedHammingDistance < invertedHammingDistance) { // if non-inverted is better
             inversionStateNeedsChange = busIsInverted;
         } else if (nonInvertedHammingDistance > invertedHammingDistance) { // if inverted is better
             inversionStateNeedsChange = !busIsInverted;
-            resultBusState = invertBusState(newBusState);
+            invertResult = true;
         } else if (busIsInverted) {
-            resultBusState = invertBusState(newBusState);
+            invertResult = true;
+        }
+
+        // Copy the lines across, inverting them if needed
+        BusWord.copy(newBusState, encodedBusState, fromLine, toLine);
+        if (invertResult) {
+            BusWord.invert(encodedBusState, fromLine, toLine);
         }
 
         // Invert bus if needed
@@ -100,20 +122,27 @@ public class BusInvertEncoder extends BusEncoder {
             busIsInverted = !busIsInverted;
         }
 
-        // Package return values in an EncodeResult
-        return new EncodeResult(busIsInverted, resultBusState);
+        return busIsInverted;
     }
 
     @Override
-    public void initialize() throws IllegalActionException {
-        super.initialize();
+    protected void resetEncoderState() throws IllegalActionException {
+        super.resetEncoderState();
 
         // Default bus state is not inverted
         busIsInvertedState = false;
     }
 
+    /**
+     * Writes the current state of the invert lines into the given packed word,
+     * sized for {@link #invertLineCount()} lines.
+     */
+    protected void readInvertLines(long[] invertLines) {
+        invertLines[0] = busIsInvertedState ? 1L : 0L;
+    }
+
     @Override
-    protected void updateOutputPorts(String newEncodedBusState) throws IllegalActionException {
+    protected void updateOutputPorts(long[] newEncodedBusState) throws IllegalActionException {
         super.updateOutputPorts(newEncodedBusState);
 
         // Update the bus invert port, seperate to allow overriding
@@ -124,19 +153,20 @@ public class BusInvertEncoder extends BusEncoder {
      * Update the bus invert port state. This is separate so it can be overridden.
      */
     protected void updateBusInvertPort() throws IllegalActionException {
-        outputPortBusInvert.send(DEFAULT_CHANNEL, new StringToken(busIsInvertedState ? "1" : "0"));
+        if (packed) {
+            outputPortBusInvert.send(DEFAULT_CHANNEL,
+                    busIsInvertedState ? INVERTED_PACKED_TOKEN : NOT_INVERTED_PACKED_TOKEN);
+        } else {
+            outputPortBusInvert.send(DEFAULT_CHANNEL,
+                    busIsInvertedState ? INVERTED_STRING_TOKEN : NOT_INVERTED_STRING_TOKEN);
+        }
     }
 
     @Override
-    protected String encode(String newBusStateString) {
-        // Perform encoding
-        EncodeResult encodingResult = busInvertEncode(newBusStateString, previousBusState, busIsInvertedState);
-
-        // Update bus inversion state
-        busIsInvertedState = encodingResult.busIsInverted;
-
-        // return encoded bus state
-        return encodingResult.busState;
+    protected void encode(long[] newBusState, long[] encodedBusState) {
+        // Perform encoding across the whole bus and update bus inversion state
+        busIsInvertedState = busInvertEncode(newBusState, previousBusState, encodedBusState, 0, busWidth,
+                busIsInvertedState);
     }
 
 }
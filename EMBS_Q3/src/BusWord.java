@@ -0,0 +1,226 @@
+import ptolemy.data.ArrayToken;
+import ptolemy.data.IntToken;
+import ptolemy.data.LongToken;
+import ptolemy.data.StringToken;
+import ptolemy.data.Token;
+import ptolemy.data.type.ArrayType;
+import ptolemy.data.type.BaseType;
+import ptolemy.data.type.Type;
+import ptolemy.kernel.util.IllegalActionException;
+
+/**
+ * Helpers for the packed representation of a bus state. A packed bus word is
+ * a {@code long[]} where bit 0 of element 0 is the least significant line of
+ * the bus, i.e. the last character of the equivalent {@code '0'/'1'} string.
+ * Buses of up to 64 lines fit in a single element, wider buses use one element
+ * per 64 lines. Bits above the bus width are always kept clear.
+ */
+public final class BusWord {
+
+    // Number of bus lines held by each element of a packed word
+    public static final int LINES_PER_WORD = Long.SIZE;
+
+    // Widest bus that can be carried by a single LongToken
+    public static final int MAX_SCALAR_WIDTH = LINES_PER_WORD;
+
+    private BusWord() {
+    }
+
+    /**
+     * Returns the number of {@code long} elements needed to hold a bus of the
+     * given width.
+     */
+    public static int wordCount(int busWidth) {
+        return (busWidth + LINES_PER_WORD - 1) / LINES_PER_WORD;
+    }
+
+    /**
+     * Returns a mask of the lines used in the last element of a packed word.
+     */
+    public static long lastWordMask(int busWidth) {
+        int usedLines = busWidth % LINES_PER_WORD;
+        return usedLines == 0 ? -1L : (1L << usedLines) - 1;
+    }
+
+    /**
+     * Creates a new all-zero packed word for a bus of the given width.
+     */
+    public static long[] create(int busWidth) {
+        return new long[wordCount(busWidth)];
+    }
+
+    /**
+     * Returns the Ptolemy type used to carry a packed word of the given width,
+     * a long for buses of up to 64 lines and an array of longs otherwise.
+     */
+    public static Type tokenType(int busWidth) {
+        return busWidth <= MAX_SCALAR_WIDTH ? BaseType.LONG : new ArrayType(BaseType.LONG);
+    }
+
+    /**
+     * Parse a binary string into the given packed word. The string should have
+     * exactly busWidth characters, otherwise an {@link IllegalArgumentException}
+     * will be thrown.
+     */
+    public static void parse(String busState, int busWidth, long[] into) {
+        // Sanity check
+        if (busState.length() != busWidth) {
+            throw new IllegalArgumentException("Bus state must have the same length as the bus width.");
+        }
+
+        // Clear the destination
+        for (int wordIndex = 0; wordIndex < into.length; wordIndex++) {
+            into[wordIndex] = 0;
+        }
+
+        // Set each line that is high, the last character is line 0
+        for (int charIndex = 0; charIndex < busWidth; charIndex++) {
+            if (busState.charAt(charIndex) == '1') {
+                int line = busWidth - 1 - charIndex;
+                into[line / LINES_PER_WORD] |= 1L << line;
+            }
+        }
+    }
+
+    /**
+     * Format a packed word as a binary string, most significant line first.
+     */
+    public static String format(long[] word, int busWidth) {
+        char[] busState = new char[busWidth];
+
+        // First character is the highest line
+        for (int charIndex = 0; charIndex < busWidth; charIndex++) {
+            int line = busWidth - 1 - charIndex;
+            busState[charIndex] = ((word[line / LINES_PER_WORD] >>> line) & 1L) != 0 ? '1' : '0';
+        }
+
+        return new String(busState);
+    }
+
+    /**
+     * Returns the number of lines that differ between the two words.
+     */
+    public static int hammingDistance(long before, long after) {
+        return Long.bitCount(before ^ after);
+    }
+
+    /**
+     * Returns the number of lines that differ between two packed words of the
+     * same width.
+     */
+    public static int hammingDistance(long[] before, long[] after) {
+        int transitions = 0;
+
+        for (int wordIndex = 0; wordIndex < before.length; wordIndex++) {
+            transitions += Long.bitCount(before[wordIndex] ^ after[wordIndex]);
+        }
+
+        return transitions;
+    }
+
+    /**
+     * Returns a mask selecting lines [fromLine, toLine) of the given element.
+     */
+    public static long rangeMask(int wordIndex, int fromLine, int toLine) {
+        int wordStart = wordIndex * LINES_PER_WORD;
+
+        // Clip the range to this element
+        int low = Math.max(fromLine - wordStart, 0);
+        int high = Math.min(toLine - wordStart, LINES_PER_WORD);
+
+        if (low >= high) {
+            return 0L;
+        }
+
+        long highMask = high == LINES_PER_WORD ? -1L : (1L << high) - 1;
+        return highMask & (-1L << low);
+    }
+
+    /**
+     * Returns the number of lines in [fromLine, toLine) that differ between two
+     * packed words.
+     */
+    public static int hammingDistance(long[] before, long[] after, int fromLine, int toLine) {
+        int transitions = 0;
+
+        for (int wordIndex = fromLine / LINES_PER_WORD; wordIndex * LINES_PER_WORD < toLine; wordIndex++) {
+            transitions += Long.bitCount((before[wordIndex] ^ after[wordIndex]) & rangeMask(wordIndex, fromLine, toLine));
+        }
+
+        return transitions;
+    }
+
+    /**
+     * Inverts the given word on a bus of up to 64 lines.
+     */
+    public static long invert(long word, int busWidth) {
+        return ~word & lastWordMask(busWidth);
+    }
+
+    /**
+     * Inverts lines [fromLine, toLine) of the packed word in place.
+     */
+    public static void invert(long[] word, int fromLine, int toLine) {
+        for (int wordIndex = fromLine / LINES_PER_WORD; wordIndex * LINES_PER_WORD < toLine; wordIndex++) {
+            word[wordIndex] ^= rangeMask(wordIndex, fromLine, toLine);
+        }
+    }
+
+    /**
+     * Copy lines [fromLine, toLine) from one packed word to another.
+     */
+    public static void copy(long[] from, long[] to, int fromLine, int toLine) {
+        for (int wordIndex = fromLine / LINES_PER_WORD; wordIndex * LINES_PER_WORD < toLine; wordIndex++) {
+            long mask = rangeMask(wordIndex, fromLine, toLine);
+            to[wordIndex] = (to[wordIndex] & ~mask) | (from[wordIndex] & mask);
+        }
+    }
+
+    /**
+     * Read a bus state token into the given packed word. Accepts binary
+     * {@link StringToken}s as well as the packed {@link LongToken} and
+     * {@link ArrayToken} forms, so packed actors can be fed from string
+     * producers.
+     */
+    public static void fromToken(Token token, int busWidth, long[] into) throws IllegalActionException {
+        if (token instanceof StringToken) {
+            parse(((StringToken) token).stringValue(), busWidth, into);
+        } else if (token instanceof LongToken) {
+            into[0] = ((LongToken) token).longValue() & lastWordMask(busWidth);
+        } else if (token instanceof IntToken) {
+            into[0] = ((IntToken) token).intValue() & lastWordMask(busWidth);
+        } else if (token instanceof ArrayToken) {
+            ArrayToken arrayToken = (ArrayToken) token;
+
+            // Sanity check
+            if (arrayToken.length() != into.length) {
+                throw new IllegalActionException("Packed bus state has " + arrayToken.length()
+                        + " words, expected " + into.length + ".");
+            }
+
+            for (int wordIndex = 0; wordIndex < into.length; wordIndex++) {
+                into[wordIndex] = ((LongToken) arrayToken.getElement(wordIndex)).longValue();
+            }
+            into[into.length - 1] &= lastWordMask(busWidth);
+        } else {
+            throw new IllegalActionException("Unsupported bus state token: " + token);
+        }
+    }
+
+    /**
+     * Wrap a packed word in the token type given by {@link #tokenType(int)}.
+     */
+    public static Token toToken(long[] word, int busWidth) throws IllegalActionException {
+        if (busWidth <= MAX_SCALAR_WIDTH) {
+            return new LongToken(word[0]);
+        }
+
+        Token[] elements = new Token[word.length];
+        for (int wordIndex = 0; wordIndex < word.length; wordIndex++) {
+            elements[wordIndex] = new LongToken(word[wordIndex]);
+        }
+
+        return new ArrayToken(BaseType.LONG, elements);
+    }
+
+}
@@ -1,7 +1,9 @@
 import java.util.Arrays;
 
 import ptolemy.data.StringToken;
+import ptolemy.data.expr.StringParameter;
 import ptolemy.kernel.CompositeEntity;
+import ptolemy.kernel.util.Attribute;
 import ptolemy.kernel.util.IllegalActionException;
 import ptolemy.kernel.util.NameDuplicationException;
 
@@ -9,6 +11,12 @@ import ptolemy.kernel.util.NameDuplicationException;
  * Split 8-bit (M-Bit) Bus-Invert encoder actor, based on the
  * {@link BusInvertEncoder}
  * actor.
+ * <p>
+ * The "Partition Sizes" parameter sets how the bus is split. A single value M
+ * splits it into M-bit blocks from the most significant line down, with a
+ * narrower last block if M does not divide the bus width. A comma separated
+ * list, e.g. "4,6,6", gives uneven blocks from the most significant line down
+ * and must add up to the bus width. Each block has its own invert line.
  */
 @SuppressWarnings("serial")
 public class ByteBusInvertEncoder extends BusInvertEncoder {
@@ -19,16 +27,110 @@ public class ByteBusInvertEncoder extends BusInvertEncoder {
     // Number of byte blocks in bus
     private int byteBlocksCount;
 
-    // Block to split the bus into
+    // Packed invert lines, reused on every fire
+    private long[] packedBusInvertLines;
+
+    // Lines [blockFromLine, blockToLine) covered by each block
+    private int[] blockFromLine;
+    private int[] blockToLine;
+
+    // Masks of each block, for buses that fit in a single packed element
+    private long[] blockMasks;
+
+    // Partition parameter
+    private StringParameter partitionSizesParameter;
+
+    // Default block to split the bus into
     private static final int BYTE_BLOCK_SIZE = 8;
 
     public ByteBusInvertEncoder(CompositeEntity container, String name)
             throws IllegalActionException, NameDuplicationException {
         super(container, name);
+
+        // Create parameter for the partition sizes, bytes by default
+        partitionSizesParameter = new StringParameter(this, "Partition Sizes");
+        partitionSizesParameter.setExpression(String.valueOf(BYTE_BLOCK_SIZE));
+    }
+
+    @Override
+    public void attributeChanged(Attribute attribute) throws IllegalActionException {
+        if (attribute == partitionSizesParameter) {
+            // The number of invert lines may have changed, the partitioning itself
+            // is checked on initialisation as the bus width may not be set yet
+            updatePortTypes();
+        } else {
+            super.attributeChanged(attribute);
+        }
+    }
+
+    /**
+     * Resolves a partition specification into block sizes, most significant
+     * block first. Throws an {@link IllegalArgumentException} if the
+     * specification is malformed or does not add up to the bus width.
+     */
+    public static int[] partitionSizes(String specification, int busWidth) {
+        String[] parts = specification.split(",");
+        int[] sizes;
+
+        try {
+            if (parts.length == 1) {
+                // Uniform M-bit blocks, the last one may be narrower
+                int blockSize = Integer.parseInt(parts[0].trim());
+                if (blockSize <= 0) {
+                    throw new IllegalArgumentException("Partition size must be positive: " + specification);
+                }
+
+                sizes = new int[(busWidth + blockSize - 1) / blockSize];
+                for (int blockIndex = 0; blockIndex < sizes.length; blockIndex++) {
+                    sizes[blockIndex] = Math.min(blockSize, busWidth - blockIndex * blockSize);
+                }
+            } else {
+                // Explicit uneven blocks
+                sizes = new int[parts.length];
+                int total = 0;
+                for (int blockIndex = 0; blockIndex < parts.length; blockIndex++) {
+                    sizes[blockIndex] = Integer.parseInt(parts[blockIndex].trim());
+                    if (sizes[blockIndex] <= 0) {
+                        throw new IllegalArgumentException("Partition sizes must be positive: " + specification);
+                    }
+                    total += sizes[blockIndex];
+                }
+
+                if (total != busWidth) {
+                    throw new IllegalArgumentException(
+                            "Partition sizes " + specification + " do not add up to the bus width " + busWidth + ".");
+                }
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Malformed partition sizes: " + specification);
+        }
+
+        return sizes;
+    }
+
+    @Override
+    protected int invertLineCount() {
+        if (partitionSizesParameter == null) {
+            return partitionSizes(String.valueOf(BYTE_BLOCK_SIZE), busWidth).length;
+        }
+
+        String specification = partitionSizesParameter.getExpression();
+        try {
+            return partitionSizes(specification, busWidth).length;
+        } catch (IllegalArgumentException e) {
+            // Not valid for the current width (yet), go by the number of blocks given
+            return specification.split(",").length;
+        }
     }
 
     @Override
     protected void updateBusInvertPort() throws IllegalActionException {
+        if (packed) {
+            readInvertLines(packedBusInvertLines);
+            outputPortBusInvert.send(DEFAULT_CHANNEL, BusWord.toToken(packedBusInvertLines, byteBlocksCount));
+            return;
+        }
+
         // String builder so we can build the state of the invert lines
         StringBuilder busInvertLines = new StringBuilder();
 
@@ -43,44 +145,93 @@ public class ByteBusInvertEncoder extends BusInvertEncoder {
     }
 
     @Override
-    public void initialize() throws IllegalActionException {
-        super.initialize();
+    protected void readInvertLines(long[] invertLines) {
+        // Block 0 drives the most significant invert line, as in the string form
+        for (int busInvertIndex = 0; busInvertIndex < byteBlocksCount; busInvertIndex++) {
+            int line = byteBlocksCount - 1 - busInvertIndex;
+            if (busIsInvertedState[busInvertIndex]) {
+                invertLines[line / BusWord.LINES_PER_WORD] |= 1L << line;
+            } else {
+                invertLines[line / BusWord.LINES_PER_WORD] &= ~(1L << line);
+            }
+        }
+    }
 
-        // Calculate number of byte blocks
-        byteBlocksCount = (int) Math.ceil((double) busWidth / BYTE_BLOCK_SIZE);
+    @Override
+    protected void resetEncoderState() throws IllegalActionException {
+        super.resetEncoderState();
+
+        // Resolve the partitioning into blocks
+        int[] sizes;
+        try {
+            sizes = partitionSizes(partitionSizesParameter.getExpression(), busWidth);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalActionException(this, e.getMessage());
+        }
+        byteBlocksCount = sizes.length;
+
+        // Work out the lines of each block, block 0 being the most significant
+        blockFromLine = new int[byteBlocksCount];
+        blockToLine = new int[byteBlocksCount];
+        blockMasks = new long[byteBlocksCount];
+
+        int toLine = busWidth;
+        for (int blockIndex = 0; blockIndex < byteBlocksCount; blockIndex++) {
+            blockToLine[blockIndex] = toLine;
+            blockFromLine[blockIndex] = toLine - sizes[blockIndex];
+            blockMasks[blockIndex] = BusWord.rangeMask(0, blockFromLine[blockIndex], toLine);
+            toLine = blockFromLine[blockIndex];
+        }
 
         // Initialise invert lines
         busIsInvertedState = new boolean[byteBlocksCount];
+        packedBusInvertLines = BusWord.create(byteBlocksCount);
 
         // Set invert lines to false by default
         Arrays.fill(busIsInvertedState, false);
     }
 
     @Override
-    protected String encode(String newBusStateString) {
-        // String builder to store full bus state from 8-bit blocks
-        StringBuilder finalBusState = new StringBuilder();
+    protected void encode(long[] newBusState, long[] encodedBusState) {
+        // Buses of up to 64 lines work on a single element with precomputed masks
+        if (busWidth <= BusWord.LINES_PER_WORD) {
+            encodedBusState[0] = encodeSingleWord(newBusState[0], previousBusState[0]);
+            return;
+        }
 
-        // For each block of 8-bits
+        // For each block, block 0 being the most significant
         for (int busInvertIndex = 0; busInvertIndex < byteBlocksCount; busInvertIndex++) {
-            // Extract block of 8-bits from current and previous bus state
-            final String currentBlockState = newBusStateString.substring(busInvertIndex * BYTE_BLOCK_SIZE,
-                    (busInvertIndex + 1) * BYTE_BLOCK_SIZE);
-            final String previousBlockState = previousBusState.substring(busInvertIndex * BYTE_BLOCK_SIZE,
-                    (busInvertIndex + 1) * BYTE_BLOCK_SIZE);
-
-            // Perform bus invert encoding on the block
-            EncodeResult encodingResult = busInvertEncode(currentBlockState, previousBlockState,
-                    busIsInvertedState[busInvertIndex]);
+            // Perform bus invert encoding on the block and update its invert state
+            busIsInvertedState[busInvertIndex] = busInvertEncode(newBusState, previousBusState, encodedBusState,
+                    blockFromLine[busInvertIndex], blockToLine[busInvertIndex], busIsInvertedState[busInvertIndex]);
+        }
+    }
 
-            // If the bus was inverted, update the current block's invert state
-            busIsInvertedState[busInvertIndex] = encodingResult.busIsInverted;
+    /**
+     * Single element version of {@link #encode(long[], long[])}, making the same
+     * decisions as {@link #busInvertEncode} for each block.
+     */
+    private long encodeSingleWord(long newBusState, long previousBusState) {
+        long encodedBusState = newBusState;
+        long changedLines = newBusState ^ previousBusState;
 
-            // Add the bus back onto the final bus
-            finalBusState.append(encodingResult.busState);
+        for (int busInvertIndex = 0; busInvertIndex < byteBlocksCount; busInvertIndex++) {
+            int nonInvertedHammingDistance = Long.bitCount(changedLines & blockMasks[busInvertIndex]);
+            int invertedHammingDistance = (blockToLine[busInvertIndex] - blockFromLine[busInvertIndex])
+                    - nonInvertedHammingDistance;
+
+            // Pick the cheaper polarity, keeping the current one on a tie
+            if (nonInvertedHammingDistance < invertedHammingDistance) {
+                busIsInvertedState[busInvertIndex] = false;
+            } else if (nonInvertedHammingDistance > invertedHammingDistance) {
+                busIsInvertedState[busInvertIndex] = true;
+            }
+
+            if (busIsInvertedState[busInvertIndex]) {
+                encodedBusState ^= blockMasks[busInvertIndex];
+            }
         }
 
-        // Return encoded full bus
-        return finalBusState.toString();
+        return encodedBusState;
     }
 }
@@ -0,0 +1,202 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import ptolemy.kernel.util.IllegalActionException;
+import ptolemy.kernel.util.NameDuplicationException;
+
+/**
+ * Compares several encoder chains over the same trace at once, one
+ * {@link TraceEvaluator} per chain, on a fork-join pool.
+ * <p>
+ * An encoder keeps state from word to word, so a single chain cannot be split
+ * across threads. Instead the trace is read once, a chunk at a time, and every
+ * chunk is handed to all the chains in parallel before the next one is read.
+ * Traces larger than memory are streamed this way; in-memory traces are split
+ * into chunks of the same size.
+ */
+public class EncoderComparison {
+
+    /**
+     * Counts and throughput of one chain.
+     */
+    public static class Row {
+        public final TraceEvaluator.Result result;
+        public final long                  nanoseconds;
+
+        public Row(TraceEvaluator.Result result, long nanoseconds) {
+            this.result = result;
+            this.nanoseconds = nanoseconds;
+        }
+
+        /**
+         * Returns the words per second this chain managed, on its own thread.
+         */
+        public double wordsPerSecond() {
+            return nanoseconds == 0 ? 0 : result.words / (nanoseconds / 1e9);
+        }
+    }
+
+    // Words handed to each chain per task when splitting an in-memory trace
+    private static final int CHUNK_WORDS = 1 << 16;
+
+    private final ForkJoinPool     pool;
+    private final TraceEvaluator[] evaluators;
+    private final long[]           nanoseconds;
+
+    /**
+     * Creates a comparison of the given chains, run on the given pool.
+     */
+    public EncoderComparison(ForkJoinPool pool, TraceEvaluator... evaluators) {
+        this.pool = pool;
+        this.evaluators = evaluators;
+        this.nanoseconds = new long[evaluators.length];
+    }
+
+    /**
+     * Creates a chain from a "name=scheme+scheme" specification, e.g.
+     * "Low-Power=xor+byte-bus-invert". A name with no schemes counts the
+     * unencoded bus.
+     */
+    public static TraceEvaluator parseChain(String specification, int busWidth)
+            throws IllegalActionException, NameDuplicationException {
+        int separator = specification.indexOf('=');
+        String name = separator < 0 ? specification : specification.substring(0, separator);
+        String schemes = separator < 0 ? "" : specification.substring(separator + 1);
+
+        return new TraceEvaluator(name, busWidth, schemes.length() == 0 ? new String[0] : schemes.split("\\+"));
+    }
+
+    /**
+     * Resets all chains and runs them over an in-memory trace.
+     */
+    public List<Row> compare(long[] trace) throws IllegalActionException {
+        reset();
+
+        for (int offset = 0; offset < trace.length; offset += CHUNK_WORDS) {
+            runChunk(trace, offset, Math.min(CHUNK_WORDS, trace.length - offset));
+        }
+
+        return rows();
+    }
+
+    /**
+     * Resets all chains and streams a trace file through them, reading it once.
+     */
+    public List<Row> compare(File traceFile) throws IOException, IllegalActionException {
+        reset();
+
+        TraceEvaluator.readTrace(traceFile, new TraceEvaluator.TraceChunkSink() {
+            @Override
+            public void accept(long[] chunk, int length) {
+                runChunk(chunk, 0, length);
+            }
+        });
+
+        return rows();
+    }
+
+    private void reset() throws IllegalActionException {
+        for (int evaluatorIndex = 0; evaluatorIndex < evaluators.length; evaluatorIndex++) {
+            evaluators[evaluatorIndex].reset();
+            nanoseconds[evaluatorIndex] = 0;
+        }
+    }
+
+    /**
+     * Hands a chunk to every chain in parallel and waits for all of them, the
+     * chunk may be reused by the caller afterwards.
+     */
+    private void runChunk(final long[] chunk, final int offset, final int length) {
+        List<RecursiveAction> tasks = new ArrayList<RecursiveAction>(evaluators.length);
+
+        for (int evaluatorIndex = 0; evaluatorIndex < evaluators.length; evaluatorIndex++) {
+            final int index = evaluatorIndex;
+            tasks.add(new RecursiveAction() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected void compute() {
+                    long start = System.nanoTime();
+                    evaluators[index].acceptAll(chunk, offset, length);
+                    nanoseconds[index] += System.nanoTime() - start;
+                }
+            });
+        }
+
+        pool.invoke(new RecursiveAction() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+    }
+
+    private List<Row> rows() {
+        List<Row> rows = new ArrayList<Row>(evaluators.length);
+        for (int evaluatorIndex = 0; evaluatorIndex < evaluators.length; evaluatorIndex++) {
+            rows.add(new Row(evaluators[evaluatorIndex].result(), nanoseconds[evaluatorIndex]));
+        }
+        return rows;
+    }
+
+    /**
+     * Formats the rows as a plain text table.
+     */
+    public static String formatTable(List<Row> rows) {
+        StringBuilder table = new StringBuilder();
+        String format = "%-24s %14s %14s %14s %14s%n";
+
+        table.append(String.format(format, "Scheme", "Bus", "Invert", "Total", "Words/s"));
+        for (Row row : rows) {
+            table.append(String.format(format, row.result.name, row.result.busTransitions,
+                    row.result.invertLineTransitions, row.result.totalTransitions(), (long) row.wordsPerSecond()));
+        }
+
+        return table.toString();
+    }
+
+    /**
+     * Compares encoder chains over a trace file and prints the table. With no
+     * chains given the three pipelines of updated_model.xml are compared.
+     * <p>
+     * Usage: EncoderComparison &lt;trace file&gt; &lt;bus width&gt; [name=scheme+scheme ...]
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: EncoderComparison <trace file> <bus width> [name=scheme+scheme ...]");
+            System.exit(1);
+        }
+
+        int busWidth = Integer.parseInt(args[1]);
+
+        // Chains to compare
+        List<TraceEvaluator> evaluators = new ArrayList<TraceEvaluator>();
+        if (args.length > 2) {
+            for (int argIndex = 2; argIndex < args.length; argIndex++) {
+                evaluators.add(parseChain(args[argIndex], busWidth));
+            }
+        } else {
+            evaluators.add(parseChain("Base", busWidth));
+            evaluators.add(parseChain("Bus-Invert=" + TraceEvaluator.BUS_INVERT, busWidth));
+            evaluators.add(parseChain("Low-Power=" + TraceEvaluator.XOR + "+" + TraceEvaluator.BYTE_BUS_INVERT,
+                    busWidth));
+        }
+
+        EncoderComparison comparison = new EncoderComparison(ForkJoinPool.commonPool(),
+                evaluators.toArray(new TraceEvaluator[evaluators.size()]));
+
+        long start = System.nanoTime();
+        List<Row> rows = comparison.compare(new File(args[0]));
+        long elapsed = System.nanoTime() - start;
+
+        System.out.print(formatTable(rows));
+        System.out.println(rows.size() + " schemes in " + (elapsed / 1000000) + " ms");
+    }
+
+}
@@ -0,0 +1,466 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import lsi.instruction.ArbitrationPolicy;
+import lsi.instruction.CycleSimulator;
+import lsi.instruction.Memory;
+import lsi.instruction.MemoryController;
+import lsi.instruction.MemoryImage;
+import ptolemy.kernel.util.IllegalActionException;
+import ptolemy.kernel.util.NameDuplicationException;
+
+/**
+ * Runs a grid of LSI system configurations on the {@link CycleSimulator} in
+ * parallel and writes one CSV row per configuration.
+ * <p>
+ * The grid is read from a text file with one "key = value ; value ..." line
+ * per dimension, '#' starting a comment:
+ *
+ * <pre>
+ * memory = memory.txt ; memory.img
+ * pcs    = 19384,50152,34768,4000 ; 4000,19384
+ * width  = 16 ; 32
+ * chain  = Base ; Bus-Invert=bus-invert ; Low-Power=xor+byte-bus-invert
+ * cycles = 40001
+ * arbitration = fixed priority ; round robin ; tdma: 0,1,2,3 ; lottery: 4,2,1,1
+ * split  = false ; true
+ * </pre>
+ *
+ * Every combination is run. Each "pcs" entry lists the initial PC of each
+ * processor in bus priority order, so it also sets the number of masters.
+ * Chains take the form used by {@link EncoderComparison}, arbitration
+ * policies the form used by {@link ArbitrationPolicy#forName}. The width
+ * defaults to 16, the chain to the unencoded bus, the arbitration to fixed
+ * priority and "split", for split-transaction buses, to false. Widths below
+ * {@link #MINIMUM_WIDTH}, the width of the addresses and data, are rejected:
+ * such buses would only see the low bits of each value.
+ * <p>
+ * Besides the grants, denied request cycles and last grant cycle of each
+ * master, each row gives the completion cycle, the last grant cycle of any
+ * master, and the throughput, grants per thousand cycles up to it. Fairness
+ * is Jain's index over the share of its requesting cycles each master was
+ * granted (1 when every master waits as long per grant).
+ * <p>
+ * Each memory file is loaded once and shared read-only, every simulation works
+ * on its own copy. The encoding does not change the simulation, so each
+ * combination of memory file, initial PCs, cycles, arbitration and bus mode
+ * is simulated once, as an isolated task on a fork-join pool, with all its
+ * width and chain combinations fed from the same run.
+ */
+public class ParameterSweep {
+
+    /**
+     * One configuration of the grid and its counts.
+     */
+    public static class Row {
+        public final String memoryFile;
+        public final int[]  initialPC;
+        public final long   cycles;
+        public final int    busWidth;
+        public final String chain;
+        public final String arbitration;
+        public final boolean split;
+
+        // Filled in by the run
+        public long                  skippedCycles;
+        public long[]                grants;
+        public long[]                deniedCycles;
+        public long[]                lastGrantCycles;
+        public TraceEvaluator.Result address;
+        public TraceEvaluator.Result data;
+
+        public Row(String memoryFile, int[] initialPC, long cycles, int busWidth, String chain,
+                String arbitration, boolean split) {
+            this.memoryFile = memoryFile;
+            this.initialPC = initialPC;
+            this.cycles = cycles;
+            this.busWidth = busWidth;
+            this.chain = chain;
+            this.arbitration = arbitration;
+            this.split = split;
+        }
+
+        /**
+         * Cycle of the last grant to any master, -1 if none was granted.
+         */
+        public long completionCycle() {
+            long completion = -1;
+            for (long lastGrant : lastGrantCycles) {
+                completion = Math.max(completion, lastGrant);
+            }
+            return completion;
+        }
+
+        /**
+         * Grants to all masters per thousand cycles, up to the completion
+         * cycle.
+         */
+        public double throughput() {
+            long total = 0;
+            for (long masterGrants : grants) {
+                total += masterGrants;
+            }
+            return total == 0 ? 0 : 1000.0 * total / (completionCycle() + 1);
+        }
+
+        /**
+         * Jain's fairness index over the share of each master's requesting
+         * cycles that were granted, grants / (grants + denied cycles). Masters
+         * that never requested the bus are left out.
+         */
+        public double fairness() {
+            double sum = 0;
+            double sumOfSquares = 0;
+            int requesting = 0;
+            for (int master = 0; master < grants.length; master++) {
+                long requestCycles = grants[master] + deniedCycles[master];
+                if (requestCycles == 0) {
+                    continue;
+                }
+                double share = (double) grants[master] / requestCycles;
+                sum += share;
+                sumOfSquares += share * share;
+                requesting++;
+            }
+            return sumOfSquares == 0 ? 1 : sum * sum / (requesting * sumOfSquares);
+        }
+    }
+
+    // Grid keys
+    public static final String MEMORY = "memory";
+    public static final String PCS    = "pcs";
+    public static final String WIDTH  = "width";
+    public static final String CHAIN  = "chain";
+    public static final String CYCLES = "cycles";
+    public static final String ARBITRATION = "arbitration";
+    public static final String SPLIT = "split";
+
+    // Narrowest bus the addresses and data fit on
+    public static final int MINIMUM_WIDTH = 16;
+
+    private final ForkJoinPool        pool;
+    private final Map<String, Memory> memoryImages = new LinkedHashMap<String, Memory>();
+
+    public ParameterSweep(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * Reads a grid file into its dimensions, each a list of values.
+     */
+    public static Map<String, List<String>> readGrid(String fileName) throws IOException {
+        Map<String, List<String>> grid = new LinkedHashMap<String, List<String>>();
+
+        BufferedReader reader = new BufferedReader(new FileReader(fileName));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // Drop comments and blank lines
+                int comment = line.indexOf('#');
+                if (comment >= 0) {
+                    line = line.substring(0, comment);
+                }
+                if (line.trim().length() == 0) {
+                    continue;
+                }
+
+                int separator = line.indexOf('=');
+                if (separator < 0) {
+                    throw new IOException("Malformed grid line: " + line);
+                }
+
+                List<String> values = new ArrayList<String>();
+                for (String value : line.substring(separator + 1).split(";")) {
+                    if (value.trim().length() > 0) {
+                        values.add(value.trim());
+                    }
+                }
+                grid.put(line.substring(0, separator).trim(), values);
+            }
+        } finally {
+            reader.close();
+        }
+
+        return grid;
+    }
+
+    /**
+     * Expands a grid into its configurations.
+     */
+    public static List<Row> expand(Map<String, List<String>> grid) {
+        List<String> memoryFiles = dimension(grid, MEMORY, null);
+        List<String> pcs = dimension(grid, PCS, null);
+        List<String> widths = dimension(grid, WIDTH, "16");
+        List<String> chains = dimension(grid, CHAIN, "Base");
+        List<String> cycles = dimension(grid, CYCLES, null);
+        List<String> arbitrations = dimension(grid, ARBITRATION, ArbitrationPolicy.FIXED_PRIORITY);
+        List<String> splits = dimension(grid, SPLIT, "false");
+
+        for (String width : widths) {
+            if (Integer.parseInt(width) < MINIMUM_WIDTH) {
+                throw new IllegalArgumentException("Bus width " + width + " is less than the " + MINIMUM_WIDTH
+                        + " bits of the addresses and data");
+            }
+        }
+
+        List<Row> rows = new ArrayList<Row>();
+        for (String memoryFile : memoryFiles) {
+            for (String pcList : pcs) {
+                String[] pcValues = pcList.split(",");
+                int[] initialPC = new int[pcValues.length];
+                for (int master = 0; master < pcValues.length; master++) {
+                    initialPC[master] = Integer.parseInt(pcValues[master].trim());
+                }
+
+                for (String cycleCount : cycles) {
+                    for (String arbitration : arbitrations) {
+                        for (String split : splits) {
+                            for (String width : widths) {
+                                for (String chain : chains) {
+                                    rows.add(new Row(memoryFile, initialPC, Long.parseLong(cycleCount),
+                                            Integer.parseInt(width), chain, arbitration, Boolean.parseBoolean(split)));
+                                }
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        return rows;
+    }
+
+    private static List<String> dimension(Map<String, List<String>> grid, String key, String defaultValue) {
+        List<String> values = grid.get(key);
+        if (values == null || values.isEmpty()) {
+            if (defaultValue == null) {
+                throw new IllegalArgumentException("Grid has no values for \"" + key + "\"");
+            }
+            values = new ArrayList<String>();
+            values.add(defaultValue);
+        }
+        return values;
+    }
+
+    /**
+     * Runs all the configurations, filling in their counts. Rows that share a
+     * memory file, initial PCs, cycle count, arbitration and bus mode share
+     * one simulation.
+     */
+    public void run(List<Row> rows) throws IOException {
+        // Load each memory image once, they are only read from here on
+        for (Row row : rows) {
+            if (!memoryImages.containsKey(row.memoryFile)) {
+                Memory memory = MemoryController.emptyMemory();
+                MemoryImage.load(row.memoryFile, memory);
+                memoryImages.put(row.memoryFile, memory);
+            }
+        }
+
+        // Group the rows by simulation
+        Map<String, List<Row>> simulations = new LinkedHashMap<String, List<Row>>();
+        for (Row row : rows) {
+            String key = row.memoryFile + "|" + formatPCs(row.initialPC) + "|" + row.cycles + "|" + row.arbitration
+                    + "|" + row.split;
+            List<Row> group = simulations.get(key);
+            if (group == null) {
+                group = new ArrayList<Row>();
+                simulations.put(key, group);
+            }
+            group.add(row);
+        }
+
+        final List<RecursiveAction> tasks = new ArrayList<RecursiveAction>();
+        for (final List<Row> group : simulations.values()) {
+            tasks.add(new RecursiveAction() {
+                private static final long serialVersionUID = 1L;
+
+                @Override
+                protected void compute() {
+                    try {
+                        simulate(group);
+                    } catch (IllegalActionException e) {
+                        throw new IllegalStateException(e);
+                    } catch (NameDuplicationException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            });
+        }
+
+        pool.invoke(new RecursiveAction() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void compute() {
+                invokeAll(tasks);
+            }
+        });
+    }
+
+    /**
+     * Runs one simulation, feeding both sub-buses to the encoder chain of every
+     * row in the group.
+     */
+    private void simulate(List<Row> group) throws IllegalActionException, NameDuplicationException {
+        Row first = group.get(0);
+
+        final TraceEvaluator[] address = new TraceEvaluator[group.size()];
+        final TraceEvaluator[] data = new TraceEvaluator[group.size()];
+        for (int rowIndex = 0; rowIndex < group.size(); rowIndex++) {
+            Row row = group.get(rowIndex);
+            address[rowIndex] = EncoderComparison.parseChain(row.chain, row.busWidth);
+            data[rowIndex] = EncoderComparison.parseChain(row.chain, row.busWidth);
+        }
+
+        CycleSimulator simulator = new CycleSimulator(memoryImages.get(first.memoryFile).copy(), first.initialPC);
+        simulator.setArbitrationPolicy(ArbitrationPolicy.forName(first.arbitration));
+        simulator.setSplitTransactions(first.split);
+        simulator.setBusListener(new CycleSimulator.BusListener() {
+            @Override
+            public void addressBus(long cycle, int value) {
+                feed(address, value);
+            }
+
+            @Override
+            public void dataBus(long cycle, int value) {
+                feed(data, value);
+            }
+        });
+        simulator.runUntil(first.cycles);
+
+        for (int rowIndex = 0; rowIndex < group.size(); rowIndex++) {
+            Row row = group.get(rowIndex);
+            row.skippedCycles = simulator.getSkippedCycles();
+            row.grants = new long[simulator.getMasters()];
+            row.deniedCycles = new long[simulator.getMasters()];
+            row.lastGrantCycles = new long[simulator.getMasters()];
+            for (int master = 0; master < row.grants.length; master++) {
+                row.grants[master] = simulator.getGrants(master);
+                row.deniedCycles[master] = simulator.getDeniedCycles(master);
+                row.lastGrantCycles[master] = simulator.getLastGrantCycle(master);
+            }
+            row.address = address[rowIndex].result();
+            row.data = data[rowIndex].result();
+        }
+    }
+
+    /**
+     * Feeds a bus state to each chain. Buses wider than 64 lines only ever see
+     * their low lines driven.
+     */
+    private static void feed(TraceEvaluator[] evaluators, int value) {
+        for (TraceEvaluator evaluator : evaluators) {
+            if (evaluator.getBusWidth() <= BusWord.MAX_SCALAR_WIDTH) {
+                evaluator.accept(value);
+            } else {
+                long[] word = BusWord.create(evaluator.getBusWidth());
+                word[0] = value;
+                evaluator.accept(word);
+            }
+        }
+    }
+
+    private static String formatPCs(int[] initialPC) {
+        StringBuilder pcs = new StringBuilder();
+        for (int master = 0; master < initialPC.length; master++) {
+            if (master > 0) {
+                pcs.append(' ');
+            }
+            pcs.append(initialPC[master]);
+        }
+        return pcs.toString();
+    }
+
+    /**
+     * Writes the rows as CSV, with grant, denied cycle and last grant columns
+     * for each master of the largest configuration.
+     */
+    public static void writeCSV(List<Row> rows, PrintWriter out) {
+        int maxMasters = 0;
+        for (Row row : rows) {
+            maxMasters = Math.max(maxMasters, row.initialPC.length);
+        }
+
+        out.print("memory,masters,initial pcs,arbitration,split,bus width,chain,cycles,skipped cycles,"
+                + "address bus,address invert,address total,data bus,data invert,data total,"
+                + "completion cycle,throughput,fairness");
+        for (int master = 0; master < maxMasters; master++) {
+            out.print(",grants " + master + ",denied " + master + ",last grant " + master);
+        }
+        out.println();
+
+        for (Row row : rows) {
+            out.print(field(row.memoryFile) + "," + row.initialPC.length + "," + formatPCs(row.initialPC) + ","
+                    + field(row.arbitration) + "," + row.split + "," + row.busWidth + "," + field(row.chain) + ","
+                    + row.cycles + ","
+                    + row.skippedCycles + "," + row.address.busTransitions + ","
+                    + row.address.invertLineTransitions + "," + row.address.totalTransitions() + ","
+                    + row.data.busTransitions + "," + row.data.invertLineTransitions + ","
+                    + row.data.totalTransitions() + "," + row.completionCycle() + ","
+                    + String.format(Locale.ROOT, "%.2f", row.throughput()) + ","
+                    + String.format(Locale.ROOT, "%.4f", row.fairness()));
+            for (int master = 0; master < maxMasters; master++) {
+                if (master < row.grants.length) {
+                    out.print("," + row.grants[master] + "," + row.deniedCycles[master] + ","
+                            + row.lastGrantCycles[master]);
+                } else {
+                    out.print(",,,");
+                }
+            }
+            out.println();
+        }
+
+        out.flush();
+    }
+
+    /**
+     * Quotes a CSV field if it holds a separator or quote.
+     */
+    private static String field(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    /**
+     * Runs a grid file and writes the CSV to the given file, or to standard
+     * output.
+     * <p>
+     * Usage: ParameterSweep &lt;grid file&gt; [csv file]
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: ParameterSweep <grid file> [csv file]");
+            System.exit(1);
+        }
+
+        List<Row> rows = expand(readGrid(args[0]));
+
+        long start = System.nanoTime();
+        new ParameterSweep(ForkJoinPool.commonPool()).run(rows);
+        long elapsed = System.nanoTime() - start;
+
+        PrintWriter out = args.length > 1 ? new PrintWriter(new FileWriter(args[1]))
+                : new PrintWriter(new OutputStreamWriter(System.out));
+        writeCSV(rows, out);
+        if (args.length > 1) {
+            out.close();
+        }
+
+        System.err.println(rows.size() + " configurations in " + (elapsed / 1000000) + " ms");
+    }
+
+}
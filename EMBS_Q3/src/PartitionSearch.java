@@ -0,0 +1,362 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import ptolemy.kernel.util.IllegalActionException;
+import ptolemy.kernel.util.NameDuplicationException;
+import ptolemy.kernel.util.Settable;
+
+/**
+ * Searches the partitionings of a bus for the {@link ByteBusInvertEncoder}
+ * that gives the lowest combined bus and invert line activity over a trace.
+ * <p>
+ * Every partitioning (composition of the bus width into block sizes, most
+ * significant block first) is evaluated on a fork-join pool. Each worker
+ * thread keeps one {@link TraceEvaluator} and reconfigures its encoder for
+ * each candidate, so no actors are built per candidate. A chain of encoders
+ * can be placed in front of the partitioned encoder, e.g. "xor" for the
+ * Low-Power pipeline of updated_model.xml.
+ * <p>
+ * A bus of n lines has 2^(n-1) partitionings, so wide buses must limit the
+ * search with a minimum block size and a maximum number of blocks: searches of
+ * more than {@link #MAXIMUM_PARTITIONINGS} candidates are rejected. Candidates
+ * are generated lazily and evaluated in batches, only the best ones are kept.
+ */
+public class PartitionSearch {
+
+    /**
+     * Largest number of partitionings a search may evaluate.
+     */
+    public static final long MAXIMUM_PARTITIONINGS = 1L << 22;
+
+    // Partitionings generated and evaluated at a time
+    private static final int BATCH = 4096;
+
+    /**
+     * A partitioning and its counts over the trace.
+     */
+    public static class Candidate {
+        public final int[]                 sizes;
+        public final TraceEvaluator.Result result;
+
+        public Candidate(int[] sizes, TraceEvaluator.Result result) {
+            this.sizes = sizes;
+            this.result = result;
+        }
+
+        /**
+         * Returns the partitioning in the form taken by the "Partition Sizes"
+         * parameter.
+         */
+        public String specification() {
+            StringBuilder specification = new StringBuilder();
+            for (int blockIndex = 0; blockIndex < sizes.length; blockIndex++) {
+                if (blockIndex > 0) {
+                    specification.append(',');
+                }
+                specification.append(sizes[blockIndex]);
+            }
+            return specification.toString();
+        }
+    }
+
+    private final ForkJoinPool pool;
+    private final int          busWidth;
+    private final String[]     chain;
+
+    // One evaluator per worker thread, reused across candidates
+    private final ThreadLocal<TraceEvaluator> evaluators = new ThreadLocal<TraceEvaluator>();
+
+    /**
+     * Creates a search for a bus of the given width, with the given encoder
+     * schemes applied before the partitioned encoder.
+     */
+    public PartitionSearch(ForkJoinPool pool, int busWidth, String... prefixSchemes) {
+        this.pool = pool;
+        this.busWidth = busWidth;
+
+        chain = new String[prefixSchemes.length + 1];
+        System.arraycopy(prefixSchemes, 0, chain, 0, prefixSchemes.length);
+        chain[prefixSchemes.length] = TraceEvaluator.BYTE_BUS_INVERT;
+    }
+
+    /**
+     * Returns the number of partitionings of the bus width into blocks of at
+     * least minimumSize lines, with at most maximumBlocks blocks, saturated at
+     * Long.MAX_VALUE.
+     */
+    public static long countPartitionings(int busWidth, int minimumSize, int maximumBlocks) {
+        // ways[remaining]: compositions of the lines placed so far, by lines left
+        long[] ways = new long[busWidth + 1];
+        ways[busWidth] = 1;
+
+        long count = 0;
+        for (int blocks = 1; blocks <= Math.min(maximumBlocks, busWidth); blocks++) {
+            long[] next = new long[busWidth + 1];
+            for (int remaining = minimumSize; remaining <= busWidth; remaining++) {
+                if (ways[remaining] == 0) {
+                    continue;
+                }
+                for (int size = minimumSize; size <= remaining; size++) {
+                    next[remaining - size] = saturatedAdd(next[remaining - size], ways[remaining]);
+                }
+            }
+            ways = next;
+            count = saturatedAdd(count, ways[0]);
+        }
+        return count;
+    }
+
+    private static long saturatedAdd(long first, long second) {
+        long sum = first + second;
+        return sum < 0 ? Long.MAX_VALUE : sum;
+    }
+
+    /**
+     * Returns an iterator over every partitioning of the bus width into blocks
+     * of at least minimumSize lines, with at most maximumBlocks blocks. The
+     * partitionings are generated as they are iterated.
+     *
+     * @throws IllegalArgumentException if the bounds are not positive or allow
+     *             more than {@link #MAXIMUM_PARTITIONINGS} partitionings
+     */
+    public static Iterator<int[]> partitionings(int busWidth, int minimumSize, int maximumBlocks) {
+        if (busWidth < 1 || minimumSize < 1 || maximumBlocks < 1) {
+            throw new IllegalArgumentException("Bus width, minimum block size and maximum blocks must be positive");
+        }
+
+        long count = countPartitionings(busWidth, minimumSize, maximumBlocks);
+        if (count > MAXIMUM_PARTITIONINGS) {
+            throw new IllegalArgumentException("A " + busWidth + "-line bus has "
+                    + (count == Long.MAX_VALUE ? "too many" : String.valueOf(count)) + " partitionings with blocks of at"
+                    + " least " + minimumSize + " lines and at most " + maximumBlocks + " blocks, more than the "
+                    + MAXIMUM_PARTITIONINGS + " allowed: raise the minimum block size or lower the maximum blocks");
+        }
+
+        return new Partitionings(busWidth, minimumSize, maximumBlocks);
+    }
+
+    /**
+     * Depth-first walk of the partitionings, trying every size for each block
+     * from the most significant one, paused at each complete partitioning.
+     */
+    private static class Partitionings implements Iterator<int[]> {
+        private final int   minimumSize;
+        private final int   maximumBlocks;
+        private final int[] sizes;
+        private final int[] remaining; // lines left before each block
+        private int         depth;
+        private int[]       next;
+
+        Partitionings(int busWidth, int minimumSize, int maximumBlocks) {
+            this.minimumSize = minimumSize;
+            this.maximumBlocks = Math.min(maximumBlocks, busWidth);
+            sizes = new int[this.maximumBlocks];
+            remaining = new int[this.maximumBlocks + 1];
+            remaining[0] = busWidth;
+
+            // Start on the first block, before its smallest size
+            depth = 0;
+            sizes[0] = minimumSize - 1;
+            next = advance();
+        }
+
+        // Moves to the next complete partitioning, null if there are no more
+        private int[] advance() {
+            while (depth >= 0) {
+                // Next size for the current block
+                sizes[depth]++;
+                if (sizes[depth] > remaining[depth]) {
+                    depth--;
+                    continue;
+                }
+
+                int left = remaining[depth] - sizes[depth];
+                if (left == 0) {
+                    int[] partitioning = new int[depth + 1];
+                    System.arraycopy(sizes, 0, partitioning, 0, depth + 1);
+                    return partitioning;
+                }
+
+                // Descend to the next block if it can still be placed
+                if (left >= minimumSize && depth + 1 < maximumBlocks) {
+                    depth++;
+                    remaining[depth] = left;
+                    sizes[depth] = minimumSize - 1;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return next != null;
+        }
+
+        @Override
+        public int[] next() {
+            if (next == null) {
+                throw new NoSuchElementException();
+            }
+            int[] partitioning = next;
+            next = advance();
+            return partitioning;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     * Evaluates the partitionings over the trace in parallel, a batch at a time,
+     * and returns the best candidates, lowest combined activity first.
+     */
+    public List<Candidate> search(final long[] trace, final Iterator<int[]> partitionings, int best) {
+        Comparator<Candidate> byActivity = new Comparator<Candidate>() {
+            @Override
+            public int compare(Candidate first, Candidate second) {
+                return Long.compare(first.result.totalTransitions(), second.result.totalTransitions());
+            }
+        };
+
+        List<Candidate> sorted = new ArrayList<Candidate>();
+        int[][] batch = new int[BATCH][];
+        while (partitionings.hasNext()) {
+            int size = 0;
+            while (size < BATCH && partitionings.hasNext()) {
+                batch[size++] = partitionings.next();
+            }
+
+            Candidate[] candidates = new Candidate[size];
+            pool.invoke(new Evaluation(trace, batch, candidates, 0, size));
+
+            // Keep the best so far, the sort is stable so ties stay in generation order
+            Collections.addAll(sorted, candidates);
+            Collections.sort(sorted, byActivity);
+            if (sorted.size() > best) {
+                sorted.subList(best, sorted.size()).clear();
+            }
+        }
+
+        return sorted;
+    }
+
+    /**
+     * Evaluates a range of a batch of partitionings, splitting it until each
+     * task has one partitioning.
+     */
+    @SuppressWarnings("serial")
+    private class Evaluation extends RecursiveAction {
+        private final long[]      trace;
+        private final int[][]     partitionings;
+        private final Candidate[] candidates;
+        private final int         from;
+        private final int         to;
+
+        Evaluation(long[] trace, int[][] partitionings, Candidate[] candidates, int from, int to) {
+            this.trace = trace;
+            this.partitionings = partitionings;
+            this.candidates = candidates;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new Evaluation(trace, partitionings, candidates, from, middle),
+                        new Evaluation(trace, partitionings, candidates, middle, to));
+                return;
+            }
+
+            if (to > from) {
+                candidates[from] = evaluate(trace, partitionings[from]);
+            }
+        }
+    }
+
+    /**
+     * Evaluates a single partitioning on the calling thread's evaluator.
+     */
+    private Candidate evaluate(long[] trace, int[] sizes) {
+        try {
+            TraceEvaluator evaluator = evaluators.get();
+            if (evaluator == null) {
+                evaluator = new TraceEvaluator("partition", busWidth, chain);
+                evaluators.set(evaluator);
+            }
+
+            Candidate candidate = new Candidate(sizes, null);
+
+            // Reconfigure the partitioned encoder, the last in the chain
+            ((Settable) evaluator.getEncoder(chain.length - 1).getAttribute("Partition Sizes"))
+                    .setExpression(candidate.specification());
+
+            return new Candidate(sizes, evaluator.evaluate(trace));
+        } catch (IllegalActionException e) {
+            throw new IllegalStateException(e);
+        } catch (NameDuplicationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Searches the partitionings of a bus over a trace file and prints the best
+     * ones.
+     * <p>
+     * Usage: PartitionSearch &lt;trace file&gt; &lt;bus width&gt; [minimum block size]
+     * [maximum blocks] [prefix schemes, e.g. xor]
+     * <p>
+     * The bounds default to blocks of any size, as many as there are lines,
+     * which is only accepted for buses of up to 23 lines.
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: PartitionSearch <trace file> <bus width> [minimum block size] [maximum blocks]"
+                    + " [prefix schemes]");
+            System.exit(1);
+        }
+
+        int busWidth = Integer.parseInt(args[1]);
+        int minimumSize = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+        int maximumBlocks = args.length > 3 ? Integer.parseInt(args[3]) : busWidth;
+        String[] prefixSchemes = args.length > 4 ? args[4].split("\\+") : new String[0];
+
+        Iterator<int[]> partitionings;
+        try {
+            partitionings = partitionings(busWidth, minimumSize, maximumBlocks);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        long[] trace = TraceEvaluator.readTrace(new File(args[0]));
+
+        PartitionSearch search = new PartitionSearch(ForkJoinPool.commonPool(), busWidth, prefixSchemes);
+
+        long start = System.nanoTime();
+        List<Candidate> candidates = search.search(trace, partitionings, 10);
+        long elapsed = System.nanoTime() - start;
+
+        // Print the best few
+        String format = "%-32s %14s %14s %14s%n";
+        System.out.printf(format, "Partition", "Bus", "Invert", "Total");
+        for (Candidate candidate : candidates) {
+            System.out.printf(format, candidate.specification(), candidate.result.busTransitions,
+                    candidate.result.invertLineTransitions, candidate.result.totalTransitions());
+        }
+        System.out.println(countPartitionings(busWidth, minimumSize, maximumBlocks) + " partitionings in "
+                + (elapsed / 1000000) + " ms");
+    }
+
+}
@@ -0,0 +1,445 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import ptolemy.kernel.CompositeEntity;
+import ptolemy.kernel.util.IllegalActionException;
+import ptolemy.kernel.util.NameDuplicationException;
+import ptolemy.kernel.util.Settable;
+
+/**
+ * Headless evaluation of a chain of bus encoders over a stream of bus words.
+ * <p>
+ * The encoder actors are driven directly through their packed encode path, no
+ * director, ports or tokens are involved, so words are processed at the speed
+ * of the encoding itself. The counts match those the
+ * {@link TransitionActivityCounter}s in updated_model.xml would report for the
+ * same chain: transitions on the encoded bus, on the invert lines of every
+ * bus-invert encoder in the chain, and their sum.
+ * <p>
+ * Traces can be given as arrays or as files. Text files hold one word per
+ * line, in decimal or in hexadecimal with a "0x" prefix; anything after the
+ * first column, blank lines and lines starting with '#' are ignored. Files
+ * ending in ".bin" hold raw little-endian 64-bit words and are read through a
+ * memory-mapped channel.
+ */
+public class TraceEvaluator {
+
+    /**
+     * Transition counts for one encoder chain.
+     */
+    public static class Result {
+        public final String name;
+        public final long   words;
+        public final long   busTransitions;
+        public final long   invertLineTransitions;
+
+        public Result(String name, long words, long busTransitions, long invertLineTransitions) {
+            this.name = name;
+            this.words = words;
+            this.busTransitions = busTransitions;
+            this.invertLineTransitions = invertLineTransitions;
+        }
+
+        /**
+         * Returns the bus transitions including the invert lines.
+         */
+        public long totalTransitions() {
+            return busTransitions + invertLineTransitions;
+        }
+
+        @Override
+        public String toString() {
+            return name + ": " + busTransitions + " bus, " + invertLineTransitions + " invert, "
+                    + totalTransitions() + " with invert (" + words + " words)";
+        }
+    }
+
+    // Encoder scheme names accepted by the constructor
+    public static final String XOR             = "xor";
+    public static final String BUS_INVERT      = "bus-invert";
+    public static final String BYTE_BUS_INVERT = "byte-bus-invert";
+
+    // Number of words read from a trace file at once
+    private static final int TRACE_CHUNK_WORDS = 1 << 16;
+
+    // Configuration
+    private final String       name;
+    private final int          busWidth;
+    private final long         busMask;
+    private final BusEncoder[] chain;
+
+    // Bus-invert encoders in the chain and their invert line state
+    private final BusInvertEncoder[] invertEncoders;
+    private final int[]              invertLineCounts;
+    private long[][]                 invertLines;
+    private long[][]                 previousInvertLines;
+
+    // Bus state
+    private final long[] inputWord;
+    private long[]       previousOutputWord;
+
+    // Counters
+    private long words;
+    private long busTransitions;
+    private long invertLineTransitions;
+
+    /**
+     * Creates an evaluator for the given chain of encoder schemes, applied in
+     * order. An empty chain counts the unencoded bus.
+     */
+    public TraceEvaluator(String name, int busWidth, String... schemes)
+            throws IllegalActionException, NameDuplicationException {
+        this.name = name;
+        this.busWidth = busWidth;
+        this.busMask = BusWord.lastWordMask(busWidth);
+
+        // Plain kernel container to hold the encoders, it never gets a director
+        CompositeEntity holder = new CompositeEntity();
+
+        // Build the chain
+        chain = new BusEncoder[schemes.length];
+        List<BusInvertEncoder> invertEncoderList = new ArrayList<BusInvertEncoder>();
+        for (int chainIndex = 0; chainIndex < schemes.length; chainIndex++) {
+            chain[chainIndex] = createEncoder(holder, schemes[chainIndex], "encoder" + chainIndex);
+            ((Settable) chain[chainIndex].getAttribute("Bus Width")).setExpression(String.valueOf(busWidth));
+
+            if (chain[chainIndex] instanceof BusInvertEncoder) {
+                invertEncoderList.add((BusInvertEncoder) chain[chainIndex]);
+            }
+        }
+
+        invertEncoders = invertEncoderList.toArray(new BusInvertEncoder[invertEncoderList.size()]);
+        invertLineCounts = new int[invertEncoders.length];
+
+        inputWord = BusWord.create(busWidth);
+
+        reset();
+    }
+
+    /**
+     * Creates the encoder actor for a scheme name, can be overridden to add
+     * schemes. The byte bus-invert scheme takes its partition sizes after a
+     * colon, e.g. "byte-bus-invert:4,6,6".
+     */
+    protected BusEncoder createEncoder(CompositeEntity holder, String scheme, String encoderName)
+            throws IllegalActionException, NameDuplicationException {
+        // Split off any scheme argument
+        int separator = scheme.indexOf(':');
+        String argument = separator < 0 ? null : scheme.substring(separator + 1);
+        scheme = separator < 0 ? scheme : scheme.substring(0, separator);
+
+        if (scheme.equals(XOR)) {
+            return new XorEncoder(holder, encoderName);
+        } else if (scheme.equals(BUS_INVERT)) {
+            return new BusInvertEncoder(holder, encoderName);
+        } else if (scheme.equals(BYTE_BUS_INVERT)) {
+            ByteBusInvertEncoder encoder = new ByteBusInvertEncoder(holder, encoderName);
+            if (argument != null) {
+                ((Settable) encoder.getAttribute("Partition Sizes")).setExpression(argument);
+            }
+            return encoder;
+        }
+
+        throw new IllegalArgumentException("Unknown encoder scheme: " + scheme);
+    }
+
+    /**
+     * Returns the encoder at the given position in the chain, e.g. to change
+     * its parameters before the next {@link #reset()}.
+     */
+    public BusEncoder getEncoder(int chainIndex) {
+        return chain[chainIndex];
+    }
+
+    /**
+     * Resets the encoders and counters to their initial state.
+     */
+    public void reset() throws IllegalActionException {
+        for (BusEncoder encoder : chain) {
+            encoder.resetEncoderState();
+        }
+
+        // Invert line counts are only known once the encoders know their width
+        invertLines = new long[invertEncoders.length][];
+        previousInvertLines = new long[invertEncoders.length][];
+        for (int invertIndex = 0; invertIndex < invertEncoders.length; invertIndex++) {
+            invertLineCounts[invertIndex] = invertEncoders[invertIndex].invertLineCount();
+            invertLines[invertIndex] = BusWord.create(invertLineCounts[invertIndex]);
+            previousInvertLines[invertIndex] = BusWord.create(invertLineCounts[invertIndex]);
+        }
+
+        previousOutputWord = BusWord.create(busWidth);
+
+        words = 0;
+        busTransitions = 0;
+        invertLineTransitions = 0;
+    }
+
+    /**
+     * Feeds one word to the chain, lines above the bus width are dropped. Only
+     * valid for buses of up to 64 lines.
+     */
+    public void accept(long word) {
+        inputWord[0] = word & busMask;
+        accept(inputWord);
+    }
+
+    /**
+     * Feeds one packed word to the chain.
+     */
+    public void accept(long[] word) {
+        long[] outputWord = word;
+
+        // Run the chain
+        for (int chainIndex = 0; chainIndex < chain.length; chainIndex++) {
+            outputWord = chain[chainIndex].advance(outputWord);
+        }
+
+        // Count transitions on the final bus
+        busTransitions += BusWord.hammingDistance(previousOutputWord, outputWord);
+        System.arraycopy(outputWord, 0, previousOutputWord, 0, outputWord.length);
+
+        // Count transitions on every set of invert lines
+        for (int invertIndex = 0; invertIndex < invertEncoders.length; invertIndex++) {
+            long[] lines = invertLines[invertIndex];
+            invertEncoders[invertIndex].readInvertLines(lines);
+            invertLineTransitions += BusWord.hammingDistance(previousInvertLines[invertIndex], lines);
+
+            invertLines[invertIndex] = previousInvertLines[invertIndex];
+            previousInvertLines[invertIndex] = lines;
+        }
+
+        words++;
+    }
+
+    /**
+     * Feeds all the words of an array to the chain.
+     */
+    public void acceptAll(long[] trace, int offset, int length) {
+        for (int wordIndex = offset; wordIndex < offset + length; wordIndex++) {
+            accept(trace[wordIndex]);
+        }
+    }
+
+    /**
+     * Returns the counts so far.
+     */
+    public Result result() {
+        return new Result(name, words, busTransitions, invertLineTransitions);
+    }
+
+    /**
+     * Returns the bus width the chain was built for.
+     */
+    public int getBusWidth() {
+        return busWidth;
+    }
+
+    /**
+     * Resets the evaluator, runs it over an in-memory trace and returns the
+     * counts.
+     */
+    public Result evaluate(long[] trace) throws IllegalActionException {
+        reset();
+        acceptAll(trace, 0, trace.length);
+        return result();
+    }
+
+    /**
+     * Resets the evaluator, runs it over an in-memory trace and returns the
+     * counts.
+     */
+    public Result evaluate(int[] trace) throws IllegalActionException {
+        reset();
+        for (int wordIndex = 0; wordIndex < trace.length; wordIndex++) {
+            accept(trace[wordIndex] & 0xFFFFFFFFL);
+        }
+        return result();
+    }
+
+    /**
+     * Resets the evaluators and streams a trace file through all of them in a
+     * single pass.
+     */
+    public static void evaluate(File traceFile, final TraceEvaluator... evaluators)
+            throws IOException, IllegalActionException {
+        for (TraceEvaluator evaluator : evaluators) {
+            evaluator.reset();
+        }
+
+        readTrace(traceFile, new TraceChunkSink() {
+            @Override
+            public void accept(long[] chunk, int length) {
+                for (TraceEvaluator evaluator : evaluators) {
+                    evaluator.acceptAll(chunk, 0, length);
+                }
+            }
+        });
+    }
+
+    /**
+     * Reads a whole trace file into memory, so it can be shared between runs.
+     */
+    public static long[] readTrace(File traceFile) throws IOException {
+        final List<long[]> chunks = new ArrayList<long[]>();
+
+        // Keep a copy of every chunk
+        readTrace(traceFile, new TraceChunkSink() {
+            @Override
+            public void accept(long[] chunk, int length) {
+                long[] copy = new long[length];
+                System.arraycopy(chunk, 0, copy, 0, length);
+                chunks.add(copy);
+            }
+        });
+
+        // Join the chunks
+        long count = 0;
+        for (long[] chunk : chunks) {
+            count += chunk.length;
+        }
+        if (count > Integer.MAX_VALUE) {
+            throw new IOException("Trace too large to hold in memory: " + count + " words.");
+        }
+
+        long[] trace = new long[(int) count];
+        int position = 0;
+        for (long[] chunk : chunks) {
+            System.arraycopy(chunk, 0, trace, position, chunk.length);
+            position += chunk.length;
+        }
+
+        return trace;
+    }
+
+    /**
+     * Receiver of the words read from a trace file, a chunk at a time. The chunk
+     * array is reused between calls.
+     */
+    public interface TraceChunkSink {
+        void accept(long[] chunk, int length);
+    }
+
+    /**
+     * Streams a trace file to the sink in chunks, in either format.
+     */
+    public static void readTrace(File traceFile, TraceChunkSink sink) throws IOException {
+        if (traceFile.getName().endsWith(".bin")) {
+            readBinaryTrace(traceFile, sink);
+        } else {
+            readTextTrace(traceFile, sink);
+        }
+    }
+
+    private static void readTextTrace(File traceFile, TraceChunkSink sink) throws IOException {
+        long[] chunk = new long[TRACE_CHUNK_WORDS];
+        int used = 0;
+
+        BufferedReader reader = new BufferedReader(new FileReader(traceFile));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+
+                // Skip blank lines and comments
+                if (line.length() == 0 || line.charAt(0) == '#') {
+                    continue;
+                }
+
+                // Only the first column is used
+                int end = 0;
+                while (end < line.length() && !Character.isWhitespace(line.charAt(end))) {
+                    end++;
+                }
+                String column = line.substring(0, end);
+
+                if (column.startsWith("0x") || column.startsWith("0X")) {
+                    chunk[used++] = Long.parseUnsignedLong(column.substring(2), 16);
+                } else {
+                    chunk[used++] = Long.parseLong(column);
+                }
+
+                // Hand over full chunks
+                if (used == chunk.length) {
+                    sink.accept(chunk, used);
+                    used = 0;
+                }
+            }
+        } finally {
+            reader.close();
+        }
+
+        if (used > 0) {
+            sink.accept(chunk, used);
+        }
+    }
+
+    private static void readBinaryTrace(File traceFile, TraceChunkSink sink) throws IOException {
+        long[] chunk = new long[TRACE_CHUNK_WORDS];
+
+        FileInputStream stream = new FileInputStream(traceFile);
+        try {
+            FileChannel channel = stream.getChannel();
+            long size = channel.size() - channel.size() % Long.BYTES;
+            long position = 0;
+
+            // Map the file a chunk at a time, so traces can exceed the address space
+            while (position < size) {
+                long length = Math.min(size - position, (long) TRACE_CHUNK_WORDS * Long.BYTES);
+                ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, length);
+                LongBuffer longs = mapped.order(ByteOrder.LITTLE_ENDIAN).asLongBuffer();
+
+                int wordCount = longs.remaining();
+                longs.get(chunk, 0, wordCount);
+                sink.accept(chunk, wordCount);
+
+                position += length;
+            }
+        } finally {
+            stream.close();
+        }
+    }
+
+    /**
+     * Evaluates the three pipelines of updated_model.xml over a trace file and
+     * prints their counts.
+     * <p>
+     * Usage: TraceEvaluator &lt;trace file&gt; [bus width]
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: TraceEvaluator <trace file> [bus width]");
+            System.exit(1);
+        }
+
+        int busWidth = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+
+        // Same pipelines as the model
+        TraceEvaluator[] evaluators = new TraceEvaluator[] {
+                new TraceEvaluator("Base", busWidth),
+                new TraceEvaluator("Bus-Invert", busWidth, BUS_INVERT),
+                new TraceEvaluator("Low-Power", busWidth, XOR, BYTE_BUS_INVERT) };
+
+        long start = System.nanoTime();
+        evaluate(new File(args[0]), evaluators);
+        long elapsed = System.nanoTime() - start;
+
+        for (TraceEvaluator evaluator : evaluators) {
+            System.out.println(evaluator.result());
+        }
+
+        long words = evaluators[0].result().words;
+        System.out.println(words + " words in " + (elapsed / 1000000) + " ms ("
+                + (long) (words / (elapsed / 1e9)) + " words/s)");
+    }
+
+}
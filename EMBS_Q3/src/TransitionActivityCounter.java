@@ -1,18 +1,19 @@
-import java.util.Arrays;
-
 import ptolemy.actor.TypedAtomicActor;
 import ptolemy.actor.TypedIOPort;
+import ptolemy.data.BooleanToken;
 import ptolemy.data.IntToken;
-import ptolemy.data.StringToken;
 import ptolemy.data.Token;
+import ptolemy.data.expr.Parameter;
 import ptolemy.data.expr.StringParameter;
 import ptolemy.data.type.BaseType;
 import ptolemy.kernel.CompositeEntity;
+import ptolemy.kernel.util.Attribute;
 import ptolemy.kernel.util.IllegalActionException;
 import ptolemy.kernel.util.NameDuplicationException;
 
 /**
- * Actor to count transition activity on an input bus.
+ * Actor to count transition activity on an input bus. The bus state may be a
+ * binary string or, with "Packed Bus State" set, a packed {@link BusWord}.
  */
 @SuppressWarnings("serial")
 public class TransitionActivityCounter extends TypedAtomicActor {
@@ -21,18 +22,19 @@ public class TransitionActivityCounter extends TypedAtomicActor {
     private TypedIOPort busState        = new TypedIOPort(this, "Bus State", true, false);
     private TypedIOPort transitionCount = new TypedIOPort(this, "Transition Count", false, true);
 
-    // Previous bus state storage
-    protected String previousBusState;
+    // Previous bus state storage, and scratch for the incoming state
+    protected long[] previousBusState;
+    protected long[] newBusState;
 
     // Activity counter
     protected int busActivitySoFar;
 
     // Default values
-    private static final int  DEFAULT_CHANNEL   = 0;
-    private static final char DEFAULT_BUS_STATE = '0';
+    private static final int DEFAULT_CHANNEL = 0;
 
-    // Bus width parameter
+    // Bus width and representation parameters
     private StringParameter busWidthParameter;
+    private Parameter       packedParameter;
 
     // Bus width storage
     private int busWidth = 16;
@@ -50,21 +52,46 @@ public class TransitionActivityCounter extends TypedAtomicActor {
         // Setup the bus width parameter with 16-bit as default
         busWidthParameter = new StringParameter(this, "Bus Width");
         busWidthParameter.setExpression("16");
+
+        // Setup the packed representation parameter, off by default
+        packedParameter = new Parameter(this, "Packed Bus State");
+        packedParameter.setTypeEquals(BaseType.BOOLEAN);
+        packedParameter.setExpression("false");
+    }
+
+    @Override
+    public void attributeChanged(Attribute attribute) throws IllegalActionException {
+        if (attribute == packedParameter) {
+            // Packed counters accept both strings and packed words
+            if (((BooleanToken) packedParameter.getToken()).booleanValue()) {
+                busState.setTypeEquals(BaseType.UNKNOWN);
+                busState.setTypeAtMost(BaseType.GENERAL);
+            } else {
+                busState.setTypeEquals(BaseType.STRING);
+            }
+        } else {
+            super.attributeChanged(attribute);
+        }
     }
 
     public void initialize() throws IllegalActionException {
         super.initialize();
 
+        // Reset the counter to its default state
+        resetCounterState();
+    }
+
+    /**
+     * Resets the previous bus state and the activity counter, without touching
+     * the ports, so the counter can also be driven without a director.
+     */
+    protected void resetCounterState() {
         // Get the bus width parameter
         busWidth = Integer.valueOf(busWidthParameter.getExpression());
 
-        // Create a default state string
-        char[] busDefaultStateArray = new char[busWidth];
-        Arrays.fill(busDefaultStateArray, DEFAULT_BUS_STATE);
-        String defaultBusState = new String(busDefaultStateArray);
-
-        // Set default state for previous bus state storage
-        previousBusState = defaultBusState;
+        // Set default state for previous bus state storage, all lines low
+        previousBusState = BusWord.create(busWidth);
+        newBusState = BusWord.create(busWidth);
 
         // Reset activity to 0
         busActivitySoFar = 0;
@@ -93,19 +120,29 @@ public class TransitionActivityCounter extends TypedAtomicActor {
         return transitions;
     }
 
+    /**
+     * Calculate the hamming distance between two packed bus states of the
+     * configured width.
+     */
+    protected int calculateHammingDistance(long[] before, long[] after) {
+        return BusWord.hammingDistance(before, after);
+    }
+
     @Override
     public void fire() throws IllegalActionException {
         // If there is an updated bus state
         if (busState.hasToken(DEFAULT_CHANNEL)) {
-            // Read the bus state into a string
-            Token newBusState = busState.get(DEFAULT_CHANNEL);
-            String newAddressBusStateString = ((StringToken) newBusState).stringValue();
+            // Read the bus state, binary string or packed, into the scratch word
+            Token newBusStateToken = busState.get(DEFAULT_CHANNEL);
+            BusWord.fromToken(newBusStateToken, busWidth, newBusState);
 
             // Add the hamming distance from the last value to the activity so far counter
-            busActivitySoFar += calculateHammingDistance(previousBusState, newAddressBusStateString);
+            busActivitySoFar += calculateHammingDistance(previousBusState, newBusState);
 
-            // Update previous state to current state
-            previousBusState = newAddressBusStateString;
+            // Update previous state to current state by swapping with the scratch word
+            long[] swap = previousBusState;
+            previousBusState = newBusState;
+            newBusState = swap;
 
             // Send current transition count
             transitionCount.send(DEFAULT_CHANNEL, new IntToken(busActivitySoFar));
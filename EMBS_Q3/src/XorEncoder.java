@@ -4,7 +4,8 @@ import ptolemy.kernel.util.NameDuplicationException;
 
 /**
  * Transition Signalling Code (XOR) encoder actor, based on the
- * {@link BusEncoder} abstract base.
+ * {@link BusEncoder} abstract base. Works on packed bus states, so any bus
+ * width is supported, including buses wider than 64 lines.
  */
 @SuppressWarnings("serial")
 public class XorEncoder extends BusEncoder {
@@ -14,11 +15,10 @@ public class XorEncoder extends BusEncoder {
     }
 
     @Override
-    protected String encode(String newBusStateString) {
+    protected void encode(long[] newBusState, long[] encodedBusState) {
         // XOR the current source bus value with the previous source bus value
-        final int xored = Integer.parseInt(newBusStateString, 2) ^ Integer.parseInt(previousBusStateUnencoded, 2);
-
-        // Re-encode as a binary string
-        return Integer.toBinaryString(((int) Math.pow(2, busWidth)) | xored).substring(1);
+        for (int wordIndex = 0; wordIndex < newBusState.length; wordIndex++) {
+            encodedBusState[wordIndex] = newBusState[wordIndex] ^ previousBusStateUnencoded[wordIndex];
+        }
     }
 }
@@ -0,0 +1,278 @@
+package lsi.instruction;
+
+/*
+ *
+ * Strategy used by SingleSharedMemoryBus (and CycleSimulator) to choose which of the masters requesting the bus on a
+ * cycle is granted it.
+ *
+ * A policy is asked to arbitrate only while the bus is free, and only on cycles with at least one request. The master
+ * it returns is granted, so policies keeping history (round robin, least recently granted) update it there.
+ *
+ * Requests are passed as a bitset, master i requesting if bit i % 64 of word i / 64 is set (see requestWords). Set
+ * bits are found with Long.numberOfTrailingZeros, a word of 64 masters at a time, so fixed priority and round robin
+ * cost about the same for 4 masters as for 256; TDMA tests a single bit.
+ *
+ * Policies are given by a specification string, "<name>" or "<name>: <argument>,<argument>,...":
+ *
+ * - fixed priority: the master at the lowest channel wins (the default).
+ * - round robin: the first requesting master after the one last granted, wrapping around.
+ * - tdma: cycles are split into slots, cycle n belonging to the master given by argument n % arguments (one slot per
+ *   master in channel order by default). Only the slot owner can be granted; a slot owner that does not request
+ *   leaves the bus idle.
+ * - lottery: a requesting master is drawn with probability proportional to its weight, given as arguments (1 for
+ *   masters without one). Draws are seeded, so runs repeat.
+ * - least recently granted: the requesting master granted longest ago, masters never granted first, ties going to
+ *   the lowest channel.
+ *
+ * Any other name is taken as the class name of an ArbitrationPolicy with a public no-argument constructor; subclasses
+ * of the bus can also plug in their own by overriding createArbitrationPolicy.
+ *
+ */
+
+import java.util.Arrays;
+import java.util.Random;
+
+public abstract class ArbitrationPolicy {
+
+
+	public final static String FIXED_PRIORITY = "fixed priority";
+	public final static String ROUND_ROBIN = "round robin";
+	public final static String TDMA = "tdma";
+	public final static String LOTTERY = "lottery";
+	public final static String LEAST_RECENTLY_GRANTED = "least recently granted";
+
+	protected int masters;
+	protected int[] arguments = new int[0];
+
+
+
+	// called before a run, once the number of masters is known
+	public void initialize(int masters){
+		this.masters = masters;
+	}
+
+	// master granted among those whose bit is set in requests on the given cycle, or -1 if none is
+	public abstract int arbitrate(long[] requests, long cycle);
+
+
+
+	// number of words in a request bitset for the given number of masters
+	public static int requestWords(int masters){
+		return (masters + 63) >>> 6;
+	}
+
+	public static boolean isRequesting(long[] requests, int master){
+		return (requests[master >>> 6] & (1L << master)) != 0;
+	}
+
+	// first requesting master at or after the given one, or -1 if there is none
+	public static int nextRequest(long[] requests, int from){
+
+		int word = from >>> 6;
+		if(word >= requests.length){
+			return -1;
+		}
+		long bits = requests[word] & (-1L << from); // shifts are mod 64, masking out the masters below from
+		while(true){
+			if(bits != 0){
+				return (word << 6) + Long.numberOfTrailingZeros(bits);
+			}
+			if(++word == requests.length){
+				return -1;
+			}
+			bits = requests[word];
+		}
+	}
+
+
+
+	// argument i, or the given default if there are fewer arguments
+	protected int argument(int i, int defaultValue){
+		return i < arguments.length ? arguments[i] : defaultValue;
+	}
+
+
+
+	public static ArbitrationPolicy forName(String specification){
+
+		int separator = specification.indexOf(':');
+		String name = (separator < 0 ? specification : specification.substring(0, separator)).trim();
+
+		ArbitrationPolicy policy;
+		if(name.length() == 0 || name.equals(FIXED_PRIORITY)){
+			policy = new FixedPriority();
+		}
+		else if(name.equals(ROUND_ROBIN)){
+			policy = new RoundRobin();
+		}
+		else if(name.equals(TDMA)){
+			policy = new Tdma();
+		}
+		else if(name.equals(LOTTERY)){
+			policy = new Lottery();
+		}
+		else if(name.equals(LEAST_RECENTLY_GRANTED)){
+			policy = new LeastRecentlyGranted();
+		}
+		else{
+			try{
+				policy = (ArbitrationPolicy)Class.forName(name).getConstructor().newInstance();
+			}
+			catch(Exception e){ // not found, not a policy or cannot be instantiated
+				throw new IllegalArgumentException("Unknown arbitration policy: " + name, e);
+			}
+		}
+
+		if(separator >= 0 && specification.substring(separator + 1).trim().length() > 0){
+			String[] values = specification.substring(separator + 1).split(",");
+			policy.arguments = new int[values.length];
+			for(int i=0;i<values.length;i++){
+				try{
+					policy.arguments[i] = Integer.parseInt(values[i].trim());
+				}
+				catch(NumberFormatException e){
+					throw new IllegalArgumentException("Bad arbitration argument: " + values[i], e);
+				}
+			}
+		}
+
+		return policy;
+	}
+
+
+
+	public static class FixedPriority extends ArbitrationPolicy {
+
+		public int arbitrate(long[] requests, long cycle){
+			return nextRequest(requests, 0); // 0 as the highest priority
+		}
+	}
+
+
+
+	public static class RoundRobin extends ArbitrationPolicy {
+
+		protected int last;
+
+		public void initialize(int masters){
+			super.initialize(masters);
+			last = masters - 1; // so master 0 is looked at first
+		}
+
+		public int arbitrate(long[] requests, long cycle){
+
+			int i = nextRequest(requests, last + 1); // masters after the last one granted
+			if(i == -1){
+				i = nextRequest(requests, 0); // wrap around
+			}
+			if(i != -1){
+				last = i;
+			}
+			return i;
+		}
+	}
+
+
+
+	public static class Tdma extends ArbitrationPolicy {
+
+		protected int[] slots;
+
+		public void initialize(int masters){
+
+			super.initialize(masters);
+			if(arguments.length == 0){
+				slots = new int[masters];
+				for(int i=0;i<masters;i++){
+					slots[i] = i;
+				}
+			}
+			else{
+				slots = arguments;
+			}
+			for(int i=0;i<slots.length;i++){
+				if(slots[i] < 0 || slots[i] >= masters){
+					throw new IllegalArgumentException("TDMA slot " + i + " owned by unknown master " + slots[i]);
+				}
+			}
+		}
+
+		public int arbitrate(long[] requests, long cycle){
+
+			int owner = slots[(int)(cycle % slots.length)];
+			return isRequesting(requests, owner) ? owner : -1;
+		}
+	}
+
+
+
+	public static class Lottery extends ArbitrationPolicy {
+
+		protected static final long SEED = 0;
+
+		protected int[] weights;
+		protected Random random;
+
+		public void initialize(int masters){
+
+			super.initialize(masters);
+			weights = new int[masters];
+			for(int i=0;i<masters;i++){
+				weights[i] = argument(i, 1);
+				if(weights[i] < 0){
+					throw new IllegalArgumentException("Negative lottery weight for master " + i);
+				}
+			}
+			random = new Random(SEED);
+		}
+
+		public int arbitrate(long[] requests, long cycle){
+
+			int tickets = 0;
+			for(int i=nextRequest(requests, 0);i!=-1;i=nextRequest(requests, i+1)){
+				tickets += weights[i];
+			}
+			if(tickets == 0){
+				return -1;
+			}
+
+			int draw = random.nextInt(tickets);
+			for(int i=nextRequest(requests, 0);i!=-1;i=nextRequest(requests, i+1)){
+				draw -= weights[i];
+				if(draw < 0) return i;
+			}
+			return -1; // not reached
+		}
+	}
+
+
+
+	public static class LeastRecentlyGranted extends ArbitrationPolicy {
+
+		protected long[] lastGranted;
+		protected long grants;
+
+		public void initialize(int masters){
+
+			super.initialize(masters);
+			lastGranted = new long[masters];
+			Arrays.fill(lastGranted, -1); // never granted
+			grants = 0;
+		}
+
+		public int arbitrate(long[] requests, long cycle){
+
+			int winner = -1;
+			for(int i=nextRequest(requests, 0);i!=-1;i=nextRequest(requests, i+1)){
+				if(winner == -1 || lastGranted[i] < lastGranted[winner]){
+					winner = i;
+				}
+			}
+			if(winner != -1){
+				lastGranted[winner] = grants++;
+			}
+			return winner;
+		}
+	}
+
+}
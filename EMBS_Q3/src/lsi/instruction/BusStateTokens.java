@@ -0,0 +1,103 @@
+package lsi.instruction;
+
+/*
+ * 
+ * Shared, immutable StringToken instances representing the state of a sub-bus in binary,
+ * as output by SingleSharedMemoryBus on its data and address bus state ports.
+ * 
+ * For buses of up to 16 bits there is one table per width holding a token for every value,
+ * populated lazily as values are first seen and shared by all bus instances in the JVM.
+ * A 16-bit bus needs at most 65536 tokens.
+ * 
+ * Wider buses have too many values to tabulate, so they use a bounded direct-mapped cache 
+ * instead: a value is looked up in a single slot, and replaces whatever was there on a miss.
+ * Memory use stays fixed whatever the width, and repeated values (e.g. addresses in a loop)
+ * still hit.
+ * 
+ * Values outside the bus range map to a single "ERROR" token, as before. Widths must be from 1 to 63 bits, so that
+ * negative values stay out of range. Buses carrying int values, such as SingleSharedMemoryBus, are limited to
+ * MAX_INT_WIDTH bits: on a 32-bit bus the ints of 2^31 and above would arrive as negative values.
+ * 
+ */
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import ptolemy.data.StringToken;
+
+public final class BusStateTokens {
+
+	public static final int MAX_TABLE_WIDTH = 16;
+	public static final int CACHE_SIZE = 4096;
+	public static final int MAX_WIDTH = 63;
+	public static final int MAX_INT_WIDTH = 31;
+
+	public static final StringToken ERROR = new StringToken("ERROR");
+
+	// one lazily allocated table per width up to MAX_TABLE_WIDTH
+	private static final AtomicReferenceArray<AtomicReferenceArray<StringToken>> tables = 
+			new AtomicReferenceArray<AtomicReferenceArray<StringToken>>(MAX_TABLE_WIDTH + 1);
+
+	// direct-mapped cache for wider buses
+	private static final AtomicReferenceArray<CacheEntry> cache = new AtomicReferenceArray<CacheEntry>(CACHE_SIZE);
+
+	private static final class CacheEntry {
+		final int width;
+		final long value;
+		final StringToken token;
+
+		CacheEntry(int width, long value, StringToken token){
+			this.width = width;
+			this.value = value;
+			this.token = token;
+		}
+	}
+
+
+	private BusStateTokens(){
+	}
+
+
+	public static StringToken get(long value, int width){
+
+		if(width < 1 || width > MAX_WIDTH){
+			throw new IllegalArgumentException("Bus width must be between 1 and " + MAX_WIDTH + ": " + width);
+		}
+
+		if(value < 0 || value >= (1L << width)) return ERROR;
+
+		if(width <= MAX_TABLE_WIDTH){
+
+			AtomicReferenceArray<StringToken> table = tables.get(width);
+			if(table == null){
+				tables.compareAndSet(width, null, new AtomicReferenceArray<StringToken>(1 << width));
+				table = tables.get(width);
+			}
+
+			StringToken token = table.get((int) value);
+			if(token == null){
+				token = new StringToken(format(value, width)); // racing threads build equal tokens, either one is fine
+				table.set((int) value, token);
+			}
+			return token;
+		}
+
+		int slot = (int) ((value ^ (value >>> 32) ^ width) & (CACHE_SIZE - 1));
+		CacheEntry entry = cache.get(slot);
+		if(entry == null || entry.width != width || entry.value != value){
+			entry = new CacheEntry(width, value, new StringToken(format(value, width)));
+			cache.set(slot, entry);
+		}
+		return entry.token;
+	}
+
+
+	public static String format(long value, int width){
+
+		char[] bits = new char[width];
+		for(int i=0;i<width;i++){
+			bits[i] = ((value >>> (width - 1 - i)) & 1L) != 0 ? '1' : '0'; // most significant bit first
+		}
+		return new String(bits);
+	}
+
+}
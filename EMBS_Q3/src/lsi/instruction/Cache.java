@@ -0,0 +1,528 @@
+package lsi.instruction;
+
+/*
+ *
+ * Actor represents a cache placed between an InstructionProcessor and the bus, holding both instructions and data.
+ *
+ * Towards the processor (input and output ports) it behaves as the bus: the processor keeps sending its request on
+ * every clock until the cache sends a GRANT back, followed by the DATA for a read. Towards the bus (toBus and fromBus
+ * ports) it behaves as a master, sending each of its requests on every clock until granted.
+ *
+ * It is organised as "size" words in lines of "line size" words, grouped in sets of "associativity" lines. A line is
+ * filled with one bus READ per word, and the line to replace in a set is chosen by the "replacement" parameter:
+ * least recently used (LRU, the default), first in first out (FIFO) or random (seeded, so runs repeat).
+ *
+ * Writes follow the "write policy" parameter:
+ *
+ * - write through (the default): every write goes on the bus, and updates the cache on a hit. Lines are only
+ *   allocated by reads.
+ * - write back: writes only update the cache, a missing line being filled first; the words written are written
+ *   back, one bus WRITE each, when their line is replaced. Dirty words are also written back, one at a time, on the
+ *   clocks the processor sends no request (e.g. while it executes), so that the memory is up to date once the
+ *   processor leaves the bus idle long enough. A request arriving during such a write back is not taken until it
+ *   completes, the processor resending it as it would to a busy bus. Words still dirty at the end of a run are
+ *   counted in the report.
+ *
+ * Read hits are answered with a GRANT on the next clock and the DATA on the one after, without using the bus. There
+ * is no coherence between caches, so processors sharing written data should not be given caches.
+ *
+ * Hits, misses and the bus transactions issued are counted; the hit rate and the number of bus transactions saved
+ * (processor requests minus bus transactions) are available through getHitRate and getBusTransactionsSaved, and
+ * printed on wrapup, to standard error, unless the "cache report" parameter is false.
+ *
+ * The cache needs no clock ticks while it has nothing to send, and reports so to a GatedClock (see ClockGated).
+ *
+ */
+
+import java.util.Arrays;
+import java.util.Random;
+
+import ptolemy.actor.TypedAtomicActor;
+import ptolemy.actor.TypedIOPort;
+import ptolemy.actor.util.Time;
+import ptolemy.data.BooleanToken;
+import ptolemy.data.IntToken;
+import ptolemy.data.expr.Parameter;
+import ptolemy.data.expr.StringParameter;
+import ptolemy.data.type.BaseType;
+import ptolemy.kernel.CompositeEntity;
+import ptolemy.kernel.util.Attribute;
+import ptolemy.kernel.util.IllegalActionException;
+import ptolemy.kernel.util.NameDuplicationException;
+
+@SuppressWarnings("serial")
+public class Cache extends TypedAtomicActor implements ClockGated {
+
+
+	public final static String LRU = "LRU";
+	public final static String FIFO = "FIFO";
+	public final static String RANDOM = "random";
+
+	public final static String WRITE_THROUGH = "write through";
+	public final static String WRITE_BACK = "write back";
+
+	protected static final long SEED = 0;
+
+
+	protected TypedIOPort input, output, toBus, fromBus, clk;
+	protected Parameter size, lineSize, associativity;
+	protected StringParameter replacement, writePolicy;
+	protected Parameter recordTokens, cacheReport;
+	protected boolean records;
+
+	// organisation
+	protected int words, lineWords, ways, sets;
+	protected boolean writeBack;
+	protected String replace;
+	protected Random random;
+
+	// contents, line l = set * ways + way
+	protected long[] tags; // line address / sets, -1 if invalid
+	protected InstructionToken[] data; // word w of line l at l * lineWords + w
+	protected boolean[] dirty; // per word
+	protected int dirtyWords, cleanFrom; // dirty word count, and where to look for the next one to write back
+	protected long[] lastUsed, filled; // access and fill order, for LRU and FIFO
+	protected long accesses, fills;
+
+	// request of the processor being served, null if none
+	protected InstructionToken request;
+	protected InstructionToken toProcessor, nextToProcessor; // sent on the next clocks
+
+	// bus operations of the current miss: write backs of the replaced line, then reads of the new one
+	protected InstructionToken[] busOperations;
+	protected int busOperation, busOperationCount;
+	protected boolean busGranted;
+	protected int fillLine; // line being filled, -1 if none
+	protected int fillLineAddress;
+	protected boolean cleaning; // the bus operation is the write back of a dirty word, outside any request
+
+	// statistics
+	protected long reads, writes, hits, misses, busReads, busWrites;
+
+
+
+	public Cache(CompositeEntity container, String name)
+			throws NameDuplicationException, IllegalActionException  {
+
+		super(container, name);
+
+		input = new TypedIOPort(this, "input", true, false); // requests from the processor
+		output = new TypedIOPort(this, "output", false, true); // grants and data to the processor
+		toBus = new TypedIOPort(this, "toBus", false, true); // requests to the bus
+		fromBus = new TypedIOPort(this, "fromBus", true, false); // grants and data from the bus
+		clk = new TypedIOPort(this, "clk", true, false);
+
+		recordTokens = new Parameter(this, "record tokens");
+		recordTokens.setTypeEquals(BaseType.BOOLEAN);
+		recordTokens.setExpression("false");
+		InstructionToken.setPortTypes(false, new TypedIOPort[]{input, fromBus}, new TypedIOPort[]{output, toBus});
+
+		size = new Parameter(this, "size");
+		size.setTypeEquals(BaseType.INT);
+		size.setExpression("64");
+
+		lineSize = new Parameter(this, "line size");
+		lineSize.setTypeEquals(BaseType.INT);
+		lineSize.setExpression("4");
+
+		associativity = new Parameter(this, "associativity");
+		associativity.setTypeEquals(BaseType.INT);
+		associativity.setExpression("2");
+
+		replacement = new StringParameter(this, "replacement");
+		replacement.addChoice(LRU);
+		replacement.addChoice(FIFO);
+		replacement.addChoice(RANDOM);
+		replacement.setExpression(LRU);
+
+		writePolicy = new StringParameter(this, "write policy");
+		writePolicy.addChoice(WRITE_THROUGH);
+		writePolicy.addChoice(WRITE_BACK);
+		writePolicy.setExpression(WRITE_THROUGH);
+
+		cacheReport = new Parameter(this, "cache report");
+		cacheReport.setTypeEquals(BaseType.BOOLEAN);
+		cacheReport.setExpression("true");
+	}
+
+
+
+	public void attributeChanged(Attribute attribute) throws IllegalActionException{
+
+		if(attribute == recordTokens){
+			records = ((BooleanToken)recordTokens.getToken()).booleanValue();
+			InstructionToken.setPortTypes(records, new TypedIOPort[]{input, fromBus}, new TypedIOPort[]{output, toBus});
+		}
+		else{
+			super.attributeChanged(attribute);
+		}
+	}
+
+
+
+	public void initialize() throws IllegalActionException{
+
+		super.initialize();
+
+		words = ((IntToken)size.getToken()).intValue();
+		lineWords = ((IntToken)lineSize.getToken()).intValue();
+		ways = ((IntToken)associativity.getToken()).intValue();
+		if(lineWords <= 0 || ways <= 0 || words <= 0 || words % (lineWords * ways) != 0){
+			throw new IllegalActionException(this, "size must be a positive multiple of line size * associativity");
+		}
+		sets = words / (lineWords * ways);
+
+		replace = replacement.stringValue();
+		if(!replace.equals(LRU) && !replace.equals(FIFO) && !replace.equals(RANDOM)){
+			throw new IllegalActionException(this, "Unknown replacement policy: " + replace);
+		}
+		String policy = writePolicy.stringValue();
+		if(!policy.equals(WRITE_THROUGH) && !policy.equals(WRITE_BACK)){
+			throw new IllegalActionException(this, "Unknown write policy: " + policy);
+		}
+		writeBack = policy.equals(WRITE_BACK);
+		random = new Random(SEED);
+
+		tags = new long[sets * ways];
+		Arrays.fill(tags, -1);
+		data = new InstructionToken[words];
+		dirty = new boolean[words];
+		dirtyWords = 0;
+		cleanFrom = 0;
+		lastUsed = new long[sets * ways];
+		filled = new long[sets * ways];
+		accesses = 0;
+		fills = 0;
+
+		request = null;
+		toProcessor = null;
+		nextToProcessor = null;
+		busOperations = new InstructionToken[2 * lineWords];
+		busOperationCount = 0;
+		busOperation = 0;
+		fillLine = -1;
+		cleaning = false;
+
+		reads = 0;
+		writes = 0;
+		hits = 0;
+		misses = 0;
+		busReads = 0;
+		busWrites = 0;
+	}
+
+
+
+	public void fire() throws IllegalActionException{
+
+		boolean sent = false; // bus request sent on this firing
+
+		if(clk.hasToken(0)){
+
+			clk.get(0); // consume clock token
+
+			if(fromBus.hasToken(0)){ // GRANT or DATA for the current bus operation
+				sent = busResponse(InstructionToken.convert(fromBus.get(0)));
+			}
+
+			if(toProcessor!=null){ // GRANT, then DATA for a read, one per clock
+				output.send(0, toProcessor.toToken(records));
+				toProcessor = nextToProcessor;
+				nextToProcessor = null;
+				if(toProcessor==null) request = null; // request served
+			}
+
+			if(!sent && busOperation<busOperationCount && !busGranted){ // keep requesting the bus until granted
+				toBus.send(0, busOperations[busOperation].toToken(records));
+			}
+			else if(request==null && busOperationCount==0 && dirtyWords>0 && !input.hasToken(0)){ // processor not using the cache
+				clean();
+			}
+		}
+
+		if(input.hasToken(0)){
+
+			InstructionToken token = InstructionToken.convert(input.get(0));
+			if(request==null && !cleaning){ // otherwise the request being served, resent until GRANT
+				request = token;
+				serve();
+			}
+		}
+
+	}
+
+
+
+	// starts serving a new processor request
+	protected void serve() throws IllegalActionException{
+
+		int address = request.address;
+		int line = lookup(address);
+
+		if(request.type==Instruction.WRITE){
+			writes++;
+			if(line!=-1){
+				hits++;
+				touch(line);
+				data[line * lineWords + address % lineWords] = new InstructionToken(-1, request.data, -1, -1);
+				if(writeBack){
+					setDirty(line * lineWords + address % lineWords);
+					respond(null);
+				}
+				else{
+					startBus(new InstructionToken[]{request});
+				}
+			}
+			else{
+				misses++;
+				if(writeBack){
+					startFill(address); // write allocate
+				}
+				else{
+					startBus(new InstructionToken[]{request}); // no write allocate
+				}
+			}
+		}
+		else{
+			reads++;
+			if(line!=-1){
+				hits++;
+				touch(line);
+				respond(data[line * lineWords + address % lineWords]);
+			}
+			else{
+				misses++;
+				startFill(address);
+			}
+		}
+	}
+
+
+
+	// queues the GRANT for the request, and the DATA if there is one
+	protected void respond(InstructionToken word){
+
+		toProcessor = request;
+		nextToProcessor = word;
+	}
+
+
+
+	// line holding an address, or -1 on a miss
+	protected int lookup(int address){
+
+		int lineAddress = address / lineWords;
+		int set = lineAddress % sets;
+		long tag = lineAddress / sets;
+		for(int way=0;way<ways;way++){
+			if(tags[set * ways + way]==tag) return set * ways + way;
+		}
+		return -1;
+	}
+
+	protected void touch(int line){
+		lastUsed[line] = ++accesses;
+	}
+
+
+
+	// replaces a line of the set of an address with the line holding it, writing back the old line if dirty
+	protected void startFill(int address) throws IllegalActionException{
+
+		int lineAddress = address / lineWords;
+		int set = lineAddress % sets;
+
+		int victim = -1;
+		for(int way=0;way<ways && victim==-1;way++){
+			if(tags[set * ways + way]==-1) victim = set * ways + way; // free line
+		}
+		if(victim==-1){
+			if(replace.equals(RANDOM)){
+				victim = set * ways + random.nextInt(ways);
+			}
+			else{
+				long[] order = replace.equals(LRU) ? lastUsed : filled;
+				victim = set * ways;
+				for(int way=1;way<ways;way++){
+					if(order[set * ways + way] < order[victim]) victim = set * ways + way;
+				}
+			}
+		}
+
+		int operations = 0;
+		int victimBase = (int)((tags[victim] * sets + set) * lineWords);
+		for(int w=0;w<lineWords;w++){
+			if(dirty[victim * lineWords + w]){ // only write back the words written, the rest may hold instructions
+				busOperations[operations++] = new InstructionToken(Instruction.WRITE, data[victim * lineWords + w].data, victimBase + w, -1);
+				dirty[victim * lineWords + w] = false;
+				dirtyWords--;
+			}
+		}
+		for(int w=0;w<lineWords;w++){
+			busOperations[operations++] = new InstructionToken(Instruction.READ, -1, lineAddress * lineWords + w, -1);
+		}
+
+		tags[victim] = -1; // invalid until filled
+		fillLine = victim;
+		fillLineAddress = lineAddress;
+
+		startBus(operations);
+	}
+
+	protected void setDirty(int word){
+
+		if(!dirty[word]){
+			dirty[word] = true;
+			dirtyWords++;
+		}
+	}
+
+	// starts writing back the next dirty word on its own
+	protected void clean() throws IllegalActionException{
+
+		int word = cleanFrom;
+		while(!dirty[word]) word = (word + 1) % words;
+		cleanFrom = (word + 1) % words;
+
+		int line = word / lineWords;
+		int address = (int)((tags[line] * sets + line / ways) * lineWords + word % lineWords);
+		dirty[word] = false;
+		dirtyWords--;
+		cleaning = true;
+		startBus(new InstructionToken[]{new InstructionToken(Instruction.WRITE, data[word].data, address, -1)});
+	}
+
+	protected void startBus(InstructionToken[] operations) throws IllegalActionException{
+
+		System.arraycopy(operations, 0, busOperations, 0, operations.length);
+		startBus(operations.length);
+	}
+
+	// sends the first of the given number of queued bus operations
+	protected void startBus(int operations) throws IllegalActionException{
+
+		busOperationCount = operations;
+		busOperation = 0;
+		busGranted = false;
+		sendBusOperation();
+	}
+
+	protected void sendBusOperation() throws IllegalActionException{
+
+		InstructionToken operation = busOperations[busOperation];
+		if(operation.type==Instruction.WRITE) busWrites++;
+		else busReads++;
+		toBus.send(0, operation.toToken(records));
+	}
+
+
+
+	// handles a GRANT or DATA from the bus, returns whether the next bus operation was sent
+	protected boolean busResponse(InstructionToken token) throws IllegalActionException{
+
+		InstructionToken operation = busOperations[busOperation];
+
+		if(!busGranted){ // GRANT
+			busGranted = true;
+			if(operation.type==Instruction.READ) return false; // DATA follows
+		}
+		else if(fillLine!=-1){ // DATA of a line fill
+			data[fillLine * lineWords + operation.address % lineWords] = token;
+		}
+
+		// operation complete
+		busOperation++;
+		busGranted = false;
+		if(busOperation<busOperationCount){
+			sendBusOperation();
+			return true;
+		}
+		busOperationCount = 0;
+		busOperation = 0;
+
+		if(cleaning){ // written back, no request to answer
+			cleaning = false;
+		}
+		else if(fillLine!=-1){ // line filled
+			int line = fillLine;
+			fillLine = -1;
+			tags[line] = fillLineAddress / sets;
+			filled[line] = ++fills;
+			touch(line);
+			int word = line * lineWords + request.address % lineWords;
+			if(request.type==Instruction.WRITE){ // write allocate
+				data[word] = new InstructionToken(-1, request.data, -1, -1);
+				setDirty(word);
+				respond(null);
+			}
+			else{
+				respond(data[word]);
+			}
+		}
+		else{ // write through, GRANT passed on to the processor
+			respond(null);
+		}
+		return false;
+	}
+
+
+
+	public Time getIdleUntil(){
+
+		boolean toClean = request==null && busOperationCount==0 && dirtyWords>0; // written back on the next clock
+		return toProcessor==null && (busOperation>=busOperationCount || busGranted) && !toClean ? Time.POSITIVE_INFINITY : null;
+	}
+
+
+
+	public long getHits(){
+		return hits;
+	}
+
+	public long getMisses(){
+		return misses;
+	}
+
+	public double getHitRate(){
+		return hits + misses == 0 ? 0 : (double)hits / (hits + misses);
+	}
+
+	public long getBusReads(){
+		return busReads;
+	}
+
+	public long getBusWrites(){
+		return busWrites;
+	}
+
+	// bus transactions the processor would have issued without the cache, less those issued by the cache
+	public long getBusTransactionsSaved(){
+		return reads + writes - busReads - busWrites;
+	}
+
+	public int getDirtyWords(){
+		return dirtyWords;
+	}
+
+
+
+	public void wrapup() throws IllegalActionException{
+
+		super.wrapup();
+
+		if(((BooleanToken)cacheReport.getToken()).booleanValue()){
+			System.err.println(getName() + ": " + hits + " hits, " + misses + " misses, hit rate " + Math.round(getHitRate() * 1000) / 10.0
+					+ "%, " + (busReads + busWrites) + " bus transactions for " + (reads + writes) + " requests (" + getBusTransactionsSaved() + " saved)"
+					+ (writeBack ? ", " + dirtyWords + " words still dirty" : ""));
+		}
+	}
+
+
+
+	public void pruneDependencies() {
+		super.pruneDependencies();
+		removeDependency(input, output);
+		removeDependency(input, toBus);
+	}
+
+}
@@ -0,0 +1,18 @@
+package lsi.instruction;
+
+import ptolemy.actor.util.Time;
+
+/*
+ *
+ * Implemented by actors driven by a GatedClock that can tell when they next need a clock tick.
+ *
+ * getIdleUntil returns the model time of the next tick the actor needs, or null if it needs every tick.
+ * The clock asks before each tick, once everything that happened on the previous tick has been handled.
+ *
+ */
+
+public interface ClockGated {
+
+	public Time getIdleUntil();
+
+}
@@ -0,0 +1,245 @@
+package lsi.instruction;
+
+/*
+ *
+ * Actor represents a crossbar connecting masters to the banks of a MultiBankMemoryController, each bank with its own
+ * 16-bit address and data lines.
+ *
+ * It works as one SingleSharedMemoryBus per bank: a request goes to the bank its address belongs to, each bank
+ * arbitrates among the masters requesting it and holds its own transaction, so masters addressing different banks
+ * proceed in the same cycle. Masters are connected as to SingleSharedMemoryBus; channel b of the toMemory and
+ * fromMemory ports goes to bank b, and the number of banks is the width of the toMemory port.
+ *
+ * Addresses are spread over the banks according to the "interleaving" parameter:
+ *
+ * - low order (the default): consecutive addresses go to consecutive banks, address a to bank a % banks.
+ * - high order: the address space is split into contiguous blocks of 65536 / banks words, one per bank.
+ *
+ * Each bank has its own instance of the arbitration policy. Channel b of the address and data bus state ports
+ * carries the states of the sub-buses of bank b, and the debug port the IDs of all masters granted a bank.
+ *
+ * Besides the per-master statistics of SingleSharedMemoryBus, the crossbar counts the grants of each bank and its
+ * bank-conflict stalls, the request cycles denied because the bank was busy or granted to another master
+ * (getBankGrants, getBankStalls). They are printed on wrapup along with the latency report, when it is enabled.
+ *
+ * Split transactions are not supported.
+ *
+ */
+
+import java.util.Arrays;
+
+import ptolemy.actor.util.Time;
+import ptolemy.data.BooleanToken;
+import ptolemy.data.expr.StringParameter;
+import ptolemy.kernel.CompositeEntity;
+import ptolemy.kernel.util.IllegalActionException;
+import ptolemy.kernel.util.NameDuplicationException;
+
+@SuppressWarnings("serial")
+public class CrossbarBus extends SingleSharedMemoryBus {
+
+
+	public final static String LOW_ORDER = "low order";
+	public final static String HIGH_ORDER = "high order";
+
+	protected StringParameter interleaving;
+
+	protected int banks;
+	protected boolean highOrder;
+	protected int bankSize; // words per bank, high order interleaving
+	protected ArbitrationPolicy[] policies;
+	protected long[][] bankRequests; // per bank, bitset of the masters requesting it
+	protected InstructionToken[] requests; // request of each master on the current cycle
+	protected int[] activeMasters;
+	protected InstructionToken[] toSends;
+	protected boolean[] toMasters;
+	protected long[] bankGrants, bankStalls;
+
+
+
+	public CrossbarBus(CompositeEntity container, String name)
+			throws NameDuplicationException, IllegalActionException  {
+
+		super(container, name);
+
+		// one channel per bank
+		toMemory.setMultiport(true);
+		fromMemory.setMultiport(true);
+		addressBusState.setMultiport(true);
+		dataBusState.setMultiport(true);
+
+		interleaving = new StringParameter(this, "interleaving");
+		interleaving.addChoice(LOW_ORDER);
+		interleaving.addChoice(HIGH_ORDER);
+		interleaving.setExpression(LOW_ORDER);
+	}
+
+
+
+	public void initialize() throws IllegalActionException{
+
+		super.initialize();
+
+		if(split){
+			throw new IllegalActionException(this, "Split transactions are not supported by the crossbar");
+		}
+
+		banks = toMemory.getWidth();
+		if(banks == 0){
+			throw new IllegalActionException(this, "No memory banks connected");
+		}
+
+		String mode = interleaving.stringValue();
+		if(!mode.equals(LOW_ORDER) && !mode.equals(HIGH_ORDER)){
+			throw new IllegalActionException(this, "Unknown interleaving: " + mode);
+		}
+		highOrder = mode.equals(HIGH_ORDER);
+		bankSize = (MemoryController.SIZE + banks - 1) / banks;
+
+		policies = new ArbitrationPolicy[banks];
+		bankRequests = new long[banks][ArbitrationPolicy.requestWords(masters)];
+		for(int b=0;b<banks;b++){
+			policies[b] = createArbitrationPolicy();
+			try{
+				policies[b].initialize(masters);
+			}
+			catch(IllegalArgumentException e){
+				throw new IllegalActionException(this, e, "Invalid arbitration policy");
+			}
+		}
+
+		requests = new InstructionToken[masters];
+		activeMasters = new int[banks];
+		Arrays.fill(activeMasters, -1);
+		toSends = new InstructionToken[banks];
+		toMasters = new boolean[banks];
+		bankGrants = new long[banks];
+		bankStalls = new long[banks];
+	}
+
+
+
+	public void fire() throws IllegalActionException{
+
+		// gather the requests received on the current cycle by the bank they address
+		for(int b=0;b<banks;b++){
+			Arrays.fill(bankRequests[b], 0);
+		}
+		for(int i=0;i<masters;i++){
+
+			if(input.hasToken(i)){
+				requests[i] = InstructionToken.convert(input.get(i));
+				bankRequests[bank(requests[i].address)][i >>> 6] |= 1L << i;
+			}
+
+		}
+
+		if(clk.hasToken(0)){
+
+			clk.get(0); // consume clock token
+			clocks++;
+
+			for(int b=0;b<banks;b++){
+
+				if(toSends[b]==null) continue;
+
+				if(toMasters[b]){ // second phase of a read transaction on the bank
+					sendResponse(activeMasters[b], toSends[b], b);
+					activeMasters[b]=-1;
+				}
+				else{ // first phase of a read or write transaction on the bank
+					sendRequest(activeMasters[b], toSends[b], b);
+					bankGrants[b]++;
+					if(toSends[b].type==Instruction.WRITE){
+						activeMasters[b]=-1;
+					}
+				}
+				toSends[b]=null;
+			}
+		}
+
+		else{
+
+			for(int b=0;b<banks;b++){
+
+				if(activeMasters[b]!=-1){ // transaction ongoing on the bank, check if there's data from memory to be sent
+
+					if(fromMemory.hasToken(b)){
+						toSends[b] = InstructionToken.convert(fromMemory.get(b));
+						toMasters[b]=true;
+					}
+				}
+				else if(ArbitrationPolicy.nextRequest(bankRequests[b], 0)!=-1){ // bank free, arbitrate its requests
+
+					int master = policies[b].arbitrate(bankRequests[b], currentCycle());
+					if(master!=-1){
+						activeMasters[b]=master;
+						toSends[b]=requests[master];
+						toMasters[b]=false;
+						bankRequests[b][master >>> 6] &= ~(1L << master);
+						if(requestStart[master]==-1) requestStart[master] = currentCycle(); // granted on its first request
+					}
+				}
+			}
+		}
+
+		// the remaining requests are denied, their bank being busy or granted to another master
+		long cycle = -1;
+		for(int b=0;b<banks;b++){
+			for(int i=ArbitrationPolicy.nextRequest(bankRequests[b], 0);i!=-1;i=ArbitrationPolicy.nextRequest(bankRequests[b], i+1)){
+
+				if(cycle==-1) cycle = currentCycle();
+				if(requestStart[i]==-1) requestStart[i] = cycle; // first request of the master
+				deniedCycles[i]++;
+				bankStalls[b]++;
+			}
+		}
+
+	}
+
+
+
+	// bank an address belongs to
+	protected int bank(int address){
+		return highOrder ? address / bankSize : address % banks;
+	}
+
+
+
+	public Time getIdleUntil(){
+
+		for(int b=0;b<banks;b++){
+			if(toSends[b]!=null) return null;
+		}
+		return Time.POSITIVE_INFINITY;
+	}
+
+
+
+	public int getBanks(){
+		return banks;
+	}
+
+	public long getBankGrants(int bank){
+		return bankGrants[bank];
+	}
+
+	// request cycles denied because the bank was busy or granted to another master
+	public long getBankStalls(int bank){
+		return bankStalls[bank];
+	}
+
+
+
+	public void wrapup() throws IllegalActionException{
+
+		super.wrapup();
+
+		if(((BooleanToken)latencyReport.getToken()).booleanValue()){
+			for(int b=0;b<banks;b++){
+				System.err.println("bank " + b + ": " + bankGrants[b] + " grants, " + bankStalls[b] + " conflict stall cycles");
+			}
+		}
+	}
+
+}
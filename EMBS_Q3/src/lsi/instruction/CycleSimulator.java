@@ -0,0 +1,502 @@
+package lsi.instruction;
+
+/*
+ *
+ * Standalone cycle-accurate simulator of the LSI system: N InstructionProcessors sharing a SingleSharedMemoryBus
+ * to a MemoryController, all driven by one clock.
+ *
+ * It reproduces, cycle for cycle, what the actor model does under the DE director (the grants, bus states and final
+ * memory contents), without the director, ports or tokens. All state is held in primitive fields and arrays, and
+ * each cycle is a single pass over the memory, the bus and the processors in the order the actors react within a
+ * clock tick:
+ *
+ * - the memory sends the data of a read requested on the previous cycle,
+ * - the bus sends what it has queued (a request to memory and a grant, or data to a master) and queues data
+ *   received from memory,
+ * - the processors react to grants and data from the bus, or issue requests,
+ * - the bus arbitrates the requests issued on this cycle, with fixed priority or another ArbitrationPolicy.
+ *
+ * With split transactions (setSplitTransactions) the bus behaves as SingleSharedMemoryBus with its "split transactions"
+ * parameter set: a read frees the address sub-bus once sent to memory, and its response is routed to the master it
+ * was tagged with.
+ *
+ * The grants and denied request cycles of each master are counted as by SingleSharedMemoryBus, along with the cycle
+ * of its last grant, which is when it finished its bus work if it stopped issuing requests before the end of the run.
+ *
+ * Cycles where every processor is in EXECUTE and the bus and memory are idle are skipped, as with the GatedClock.
+ *
+ * Cycle n corresponds to the clock tick at time n * period; running the actor model with stop time T covers
+ * cycles 0 to T / period inclusive.
+ *
+ * Bus states are passed to an optional BusListener as they change, as ints rather than strings. Running this class
+ * prints the final memory in the format of MemoryController.wrapup, and can write the bus states out as traces
+ * in the format read by TraceEvaluator.
+ *
+ */
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.Arrays;
+
+public class CycleSimulator {
+
+
+	public interface BusListener {
+
+		// the address sub-bus is driven with a new value on the given cycle
+		public void addressBus(long cycle, int address);
+
+		// the data sub-bus is driven with a new value on the given cycle
+		public void dataBus(long cycle, int data);
+	}
+
+
+	// processor states, as in InstructionProcessor
+	protected static final int EXECUTE = 0;
+	protected static final int READ = 1;
+	protected static final int WRITE = 2;
+	protected static final int FETCH = 3;
+	protected static final int DECODE = 4;
+	protected static final int DATA_WAIT = 5;
+
+	protected static final long NEVER = Long.MAX_VALUE;
+
+
+	protected final Memory memory;
+	protected final int masters;
+	protected BusListener listener;
+
+	protected long cycle;
+	protected long skippedCycles;
+
+	// processors
+	protected final int[] state;
+	protected final int[] pc;
+	protected final int[] raddress;
+	protected final int[] rdata;
+	protected final long[] executeUntil; // cycle an EXECUTE finishes on
+	protected final long[] requests; // bitset of the requests issued this cycle, see ArbitrationPolicy
+	protected final long[] grants;
+	protected final long[] deniedCycles; // cycles a request was not granted, as counted by SingleSharedMemoryBus
+	protected final long[] lastGrantCycle; // -1 before the first grant
+
+	// bus
+	protected ArbitrationPolicy policy;
+	protected int activeMaster;
+	protected boolean toSend, toMaster;
+	protected int sendType, sendData, sendAddress, sendTime;
+
+	// memory
+	protected int readAddress;
+	protected boolean fromMemory;
+	protected int fromMemoryType, fromMemoryData, fromMemoryAddress, fromMemoryTime; // word read
+
+	// split transactions
+	protected boolean split;
+	protected boolean responseReady; // data from memory, sent on the next cycle
+	protected int responseType, responseData, responseAddress, responseTime;
+	protected final int[] pendingReads; // masters of the reads sent to memory, oldest first
+	protected int pendingHead, pendingCount;
+	protected int grantMaster; // master granted on this cycle, when a response goes to inputMaster
+
+	// token driven by the bus to the active master on this cycle
+	protected int inputMaster;
+	protected int inputType, inputData, inputAddress, inputTime;
+
+
+
+	// the memory is used in place, and holds the final contents once run
+	public CycleSimulator(Memory memory, int[] initialPC){
+
+		this.memory = memory;
+		this.masters = initialPC.length;
+
+		state = new int[masters];
+		pc = initialPC.clone();
+		raddress = new int[masters];
+		rdata = new int[masters];
+		executeUntil = new long[masters];
+		requests = new long[ArbitrationPolicy.requestWords(masters)];
+		grants = new long[masters];
+		deniedCycles = new long[masters];
+		lastGrantCycle = new long[masters];
+		pendingReads = new int[masters];
+
+		for(int i=0;i<masters;i++){
+			state[i] = FETCH;
+		}
+		Arrays.fill(lastGrantCycle, -1);
+		policy = new ArbitrationPolicy.FixedPriority();
+		policy.initialize(masters);
+		activeMaster = -1;
+		readAddress = -1;
+		inputMaster = -1;
+		grantMaster = -1;
+	}
+
+
+
+	public void setBusListener(BusListener listener){
+		this.listener = listener;
+	}
+
+	// overlaps the address phase of requests with the data phase of reads, before running
+	public void setSplitTransactions(boolean split){
+		this.split = split;
+	}
+
+	// replaces fixed priority arbitration, before running
+	public void setArbitrationPolicy(ArbitrationPolicy policy){
+		this.policy = policy;
+		policy.initialize(masters);
+	}
+
+
+
+	// runs up to, but not including, the given cycle
+	public void runUntil(long endCycle){
+
+		while(cycle < endCycle){
+
+			if(isIdle()){
+				long wake = NEVER;
+				for(int i=0;i<masters;i++){
+					wake = Math.min(wake, executeUntil[i]);
+				}
+				wake = Math.min(wake, endCycle);
+				if(wake > cycle){
+					skippedCycles += wake - cycle;
+					cycle = wake;
+					continue;
+				}
+			}
+
+			step();
+		}
+	}
+
+
+
+	// all processors in EXECUTE past this cycle, nothing on the bus or in memory
+	protected boolean isIdle(){
+
+		if(toSend || fromMemory || readAddress != -1 || activeMaster != -1 || responseReady){
+			return false;
+		}
+		for(int i=0;i<masters;i++){
+			if(state[i] != EXECUTE || executeUntil[i] <= cycle){
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+
+	// simulates one clock tick
+	protected void step(){
+
+		// memory: send the data of the read requested last cycle
+		if(readAddress != -1){
+			fromMemoryType = memory.type[readAddress];
+			fromMemoryData = memory.data[readAddress];
+			fromMemoryAddress = memory.address[readAddress];
+			fromMemoryTime = memory.time[readAddress];
+			fromMemory = true;
+			readAddress = -1;
+		}
+
+		// bus: send queued request or data
+		inputMaster = -1;
+		grantMaster = -1;
+		if(split){
+			stepSplit();
+		}
+		else if(toSend){
+			inputMaster = activeMaster;
+			inputType = sendType;
+			inputData = sendData;
+			inputAddress = sendAddress;
+			inputTime = sendTime;
+			if(toMaster){ // second phase of a read
+				if(listener != null) listener.dataBus(cycle, sendData);
+				activeMaster = -1;
+			}
+			else{ // request to memory, and grant to the master
+				if(sendType == Instruction.READ){
+					readAddress = sendAddress;
+				}
+				else if(sendType == Instruction.WRITE){
+					memory.write(sendAddress, sendData);
+				}
+				grants[activeMaster]++;
+				lastGrantCycle[activeMaster] = cycle;
+				if(listener != null) listener.addressBus(cycle, sendAddress);
+				if(sendType == Instruction.WRITE){
+					activeMaster = -1;
+					if(listener != null) listener.dataBus(cycle, sendData);
+				}
+			}
+			toSend = false;
+		}
+
+		// bus: queue data from memory to the active master
+		if(split && fromMemory){ // for the master of the oldest pending read
+			responseType = fromMemoryType;
+			responseData = fromMemoryData;
+			responseAddress = fromMemoryAddress;
+			responseTime = fromMemoryTime;
+			responseReady = true;
+			fromMemory = false;
+		}
+		else if(fromMemory && activeMaster != -1){
+			sendType = fromMemoryType;
+			sendData = fromMemoryData;
+			sendAddress = fromMemoryAddress;
+			sendTime = fromMemoryTime;
+			toSend = true;
+			toMaster = true;
+			fromMemory = false;
+		}
+
+		// processors
+		boolean anyRequest = false;
+		Arrays.fill(requests, 0);
+		for(int i=0;i<masters;i++){
+
+			if(i == inputMaster || i == grantMaster){
+				if(state[i] == FETCH){ // grant
+					pc[i]++;
+					state[i] = DECODE;
+				}
+				else if(state[i] == WRITE){ // grant
+					state[i] = FETCH;
+				}
+				else if(state[i] == READ){ // grant
+					state[i] = DATA_WAIT;
+				}
+				else if(state[i] == DATA_WAIT){ // data
+					state[i] = FETCH;
+				}
+				else if(state[i] == DECODE){ // instruction
+					decode(i);
+				}
+			}
+			else if(state[i] == EXECUTE){
+				if(cycle >= executeUntil[i]){
+					state[i] = FETCH;
+				}
+			}
+			else if(state[i] == FETCH || state[i] == READ || state[i] == WRITE){
+				requests[i >>> 6] |= 1L << i;
+				anyRequest = true;
+			}
+		}
+
+		// bus: arbitration of this cycle's requests, the others are denied
+		if(anyRequest){
+			int i = activeMaster == -1 ? policy.arbitrate(requests, cycle) : -1;
+			for(int j=ArbitrationPolicy.nextRequest(requests, 0);j!=-1;j=ArbitrationPolicy.nextRequest(requests, j+1)){
+				if(j != i) deniedCycles[j]++;
+			}
+			if(i != -1){
+				activeMaster = i;
+				if(state[i] == FETCH){
+					setSend(Instruction.READ, -1, pc[i]);
+				}
+				else if(state[i] == READ){
+					setSend(Instruction.READ, -1, raddress[i]);
+				}
+				else{
+					setSend(Instruction.WRITE, rdata[i], raddress[i]);
+				}
+			}
+		}
+
+		cycle++;
+	}
+
+
+
+	// split transactions: send the pending read response and the queued request, which can overlap
+	protected void stepSplit(){
+
+		boolean dataBusTaken = false;
+		if(responseReady){
+			inputMaster = pendingReads[pendingHead];
+			pendingHead = (pendingHead + 1) % masters;
+			pendingCount--;
+			inputType = responseType;
+			inputData = responseData;
+			inputAddress = responseAddress;
+			inputTime = responseTime;
+			if(listener != null) listener.dataBus(cycle, responseData);
+			responseReady = false;
+			dataBusTaken = true;
+		}
+
+		if(toSend && !(dataBusTaken && sendType == Instruction.WRITE)){ // a WRITE waits for a free data sub-bus
+			grantMaster = activeMaster;
+			if(sendType == Instruction.READ){
+				readAddress = sendAddress;
+				pendingReads[(pendingHead + pendingCount) % masters] = activeMaster;
+				pendingCount++;
+			}
+			else if(sendType == Instruction.WRITE){
+				memory.write(sendAddress, sendData);
+			}
+			grants[activeMaster]++;
+			lastGrantCycle[activeMaster] = cycle;
+			if(listener != null) listener.addressBus(cycle, sendAddress);
+			if(sendType == Instruction.WRITE){
+				if(listener != null) listener.dataBus(cycle, sendData);
+			}
+			activeMaster = -1;
+			toSend = false;
+		}
+	}
+
+
+
+	protected void decode(int i){
+
+		if(inputType == Instruction.EXECUTE){ // finishes on the clock the countdown of InstructionProcessor reaches 0
+			executeUntil[i] = inputTime < 0 ? NEVER : cycle + Math.max(inputTime, 1);
+			state[i] = EXECUTE;
+		}
+		else if(inputType == Instruction.JUMP){
+			pc[i] = inputAddress;
+			state[i] = FETCH;
+		}
+		else if(inputType == Instruction.WRITE){
+			raddress[i] = inputAddress;
+			rdata[i] = inputData;
+			state[i] = WRITE;
+		}
+		else if(inputType == Instruction.READ){
+			raddress[i] = inputAddress;
+			state[i] = READ;
+		}
+	}
+
+
+	protected void setSend(int type, int data, int address){
+
+		sendType = type;
+		sendData = data;
+		sendAddress = address;
+		sendTime = -1;
+		toSend = true;
+		toMaster = false;
+	}
+
+
+
+	public long getCycle(){
+		return cycle;
+	}
+
+	public long getSkippedCycles(){
+		return skippedCycles;
+	}
+
+	public Memory getMemory(){
+		return memory;
+	}
+
+	public long getGrants(int master){
+		return grants[master];
+	}
+
+	public long getDeniedCycles(int master){
+		return deniedCycles[master];
+	}
+
+	// cycle of the last request granted to the master, -1 if none was
+	public long getLastGrantCycle(int master){
+		return lastGrantCycle[master];
+	}
+
+	public int getMasters(){
+		return masters;
+	}
+
+
+
+	// writes "cycle value" lines for each sub-bus, usable as TraceEvaluator traces
+	public static class TraceWriter implements BusListener {
+
+		protected final PrintWriter address, data;
+
+		public TraceWriter(Writer address, Writer data){
+			this.address = new PrintWriter(address);
+			this.data = new PrintWriter(data);
+		}
+
+		public void addressBus(long cycle, int value){
+			address.println(value + " " + cycle);
+		}
+
+		public void dataBus(long cycle, int value){
+			data.println(value + " " + cycle);
+		}
+
+		public void close(){
+			address.close();
+			data.close();
+		}
+	}
+
+
+
+	/*
+	 * Usage: CycleSimulator <memory file> <cycles> <initial PC,initial PC,...> [address trace] [data trace]
+	 *
+	 * Initial PCs are given in the order of the bus input channels, highest priority first.
+	 */
+	public static void main(String[] args) throws IOException{
+
+		if(args.length != 3 && args.length != 5){
+			System.err.println("Usage: CycleSimulator <memory file> <cycles> <initial PC,initial PC,...> [address trace] [data trace]");
+			System.exit(1);
+		}
+
+		Memory memory = MemoryController.emptyMemory();
+		MemoryImage.load(args[0], memory);
+
+		String[] pcs = args[2].split(",");
+		int[] initialPC = new int[pcs.length];
+		for(int i=0;i<pcs.length;i++){
+			initialPC[i] = Integer.parseInt(pcs[i].trim());
+		}
+
+		CycleSimulator simulator = new CycleSimulator(memory, initialPC);
+		TraceWriter traces = null;
+		if(args.length == 5){
+			traces = new TraceWriter(new BufferedWriter(new FileWriter(args[3])), new BufferedWriter(new FileWriter(args[4])));
+			simulator.setBusListener(traces);
+		}
+
+		long start = System.nanoTime();
+		simulator.runUntil(Long.parseLong(args[1]));
+		long elapsed = System.nanoTime() - start;
+
+		if(traces != null){
+			traces.close();
+		}
+
+		Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+		MemoryImage.writeText(out, memory, null);
+		out.flush();
+
+		System.err.println(simulator.getCycle() + " cycles (" + simulator.getSkippedCycles() + " skipped) in " + (elapsed / 1000000) + " ms");
+		for(int i=0;i<initialPC.length;i++){
+			System.err.println("master " + i + ": " + simulator.getGrants(i) + " grants");
+		}
+	}
+
+}
@@ -0,0 +1,290 @@
+package lsi.instruction;
+
+/*
+ *
+ * Differential check of CycleSimulator against the actor model it reproduces.
+ *
+ * The model (updated_model.xml by default) is parsed and run under its director with MoMLParser and a Manager,
+ * graphical actors replaced so it runs headless, and Recorders attached to the address and data bus state ports
+ * of its SingleSharedMemoryBus. CycleSimulator is then run from the same initial memory, as loaded by the model's
+ * MemoryController, with the initial PCs of the processors in the order of the bus input channels, the bus
+ * arbitration and split transactions settings, and as many cycles as the director's stop time covers.
+ *
+ * The two address bus and data bus state sequences are compared, value and cycle of every change, and so is the
+ * final memory. Mismatches are printed and the check exits with status 1; a model the simulator cannot reproduce
+ * (other interconnects, caches, or processors prefetching or buffering writes) exits with status 2.
+ *
+ * The arbitration and split transactions settings of the model can be overridden, so that every policy can be
+ * checked against the same model:
+ *
+ * 		java lsi.instruction.CycleSimulatorCheck [model file] [arbitration] [split transactions]
+ *
+ * e.g. "CycleSimulatorCheck updated_model.xml round robin true". Memory file names in the model are resolved
+ * from the working directory, as when the model is run.
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ptolemy.actor.CompositeActor;
+import ptolemy.actor.IOPort;
+import ptolemy.actor.IORelation;
+import ptolemy.actor.Manager;
+import ptolemy.actor.lib.Recorder;
+import ptolemy.data.BooleanToken;
+import ptolemy.data.DoubleToken;
+import ptolemy.data.IntToken;
+import ptolemy.data.StringToken;
+import ptolemy.kernel.CompositeEntity;
+import ptolemy.kernel.util.IllegalActionException;
+import ptolemy.kernel.util.NamedObj;
+import ptolemy.kernel.util.Settable;
+import ptolemy.moml.MoMLParser;
+import ptolemy.moml.filter.BackwardCompatibility;
+import ptolemy.moml.filter.RemoveGraphicalClasses;
+
+public class CycleSimulatorCheck {
+
+
+	public final static String DEFAULT_MODEL = "updated_model.xml";
+
+	// mismatches printed per comparison
+	protected final static int REPORTED = 10;
+
+
+	// bus state sequence, one change per entry
+	protected static class Trace {
+
+		protected final List<Long> cycles = new ArrayList<Long>();
+		protected final List<String> states = new ArrayList<String>();
+
+		protected void add(long cycle, String state){
+			cycles.add(cycle);
+			states.add(state);
+		}
+	}
+
+
+	// model the simulator cannot reproduce
+	@SuppressWarnings("serial")
+	protected static class UnsupportedModelException extends Exception {
+
+		protected UnsupportedModelException(String message){
+			super(message);
+		}
+	}
+
+
+
+	public static void main(String[] args) throws Exception{
+
+		if(args.length > 3){
+			System.err.println("Usage: CycleSimulatorCheck [model file] [arbitration] [split transactions]");
+			System.exit(2);
+		}
+
+		try{
+			boolean match = check(args.length > 0 ? args[0] : DEFAULT_MODEL, args.length > 1 ? args[1] : null,
+					args.length > 2 ? args[2] : null);
+			System.exit(match ? 0 : 1);
+		}
+		catch(UnsupportedModelException e){
+			System.err.println(e.getMessage());
+			System.exit(2);
+		}
+	}
+
+
+
+	// runs both and compares them, true if they agree; arbitration and split override the model when not null
+	public static boolean check(String modelFile, String arbitration, String split) throws Exception{
+
+		MoMLParser.setMoMLFilters(BackwardCompatibility.allFilters());
+		RemoveGraphicalClasses headless = new RemoveGraphicalClasses();
+		headless.put("ptolemy.actor.lib.gui.Display", "ptolemy.actor.lib.Discard"); // needs an effigy otherwise
+		MoMLParser.addMoMLFilter(headless);
+		CompositeActor top = (CompositeActor) new MoMLParser().parseFile(modelFile);
+
+		// the parts the simulator reproduces
+		SingleSharedMemoryBus bus = find(top, SingleSharedMemoryBus.class);
+		if(bus.getClass() != SingleSharedMemoryBus.class){
+			throw new UnsupportedModelException("The simulator does not model " + bus.getClass().getName());
+		}
+		MemoryController controller = find(top, MemoryController.class);
+		if(controller.getClass() != MemoryController.class){
+			throw new UnsupportedModelException("The simulator does not model " + controller.getClass().getName());
+		}
+
+		if(arbitration != null) bus.arbitration.setExpression(arbitration);
+		if(split != null) bus.splitTransactions.setExpression(split);
+		((Settable)controller.getAttribute("dump mode")).setExpression(MemoryController.DUMP_NONE); // compared below instead
+
+		List<InstructionProcessor> processors = new ArrayList<InstructionProcessor>();
+		for(Object port : bus.input.deepConnectedOutPortList()){ // in channel order
+			NamedObj actor = ((IOPort)port).getContainer();
+			if(actor.getClass() != InstructionProcessor.class){
+				throw new UnsupportedModelException("Bus master " + actor.getFullName() + " is not an InstructionProcessor");
+			}
+			processors.add((InstructionProcessor)actor);
+		}
+
+		Recorder addressRecorder = record(top, bus.addressBusState, "CycleSimulatorCheck address");
+		Recorder dataRecorder = record(top, bus.dataBusState, "CycleSimulatorCheck data");
+
+		// actor model
+		Manager manager = new Manager(top.workspace(), "manager");
+		top.setManager(manager);
+		manager.execute();
+
+		for(InstructionProcessor processor : processors){
+			if(processor.depth > 0 || processor.writeBufferSize > 0){
+				throw new UnsupportedModelException("The simulator does not model the prefetching or write buffer of "
+						+ processor.getFullName());
+			}
+		}
+
+		double period = GatedClock.period(bus.clk);
+		if(period <= 0){
+			throw new UnsupportedModelException("The period of the clock driving " + bus.getFullName() + " cannot be found");
+		}
+		double start = top.getDirector().getModelStartTime().getDoubleValue();
+		double stop = ((DoubleToken)((ptolemy.data.expr.Variable)top.getDirector().getAttribute("stopTime")).getToken()).doubleValue();
+
+		// simulator, from the memory file the controller loaded
+		Memory modelMemory = controller.memory;
+		Memory memory = MemoryController.emptyMemory();
+		if(controller.memoryFile.stringValue().equals("test")){ // built in place by the controller
+			controller.memory = memory;
+			controller.createTestProgram();
+			controller.memory = modelMemory;
+		}
+		else{
+			MemoryImage.load(controller.memoryFile.stringValue(), memory);
+		}
+		int[] initialPC = new int[processors.size()];
+		for(int i=0;i<initialPC.length;i++){
+			initialPC[i] = ((IntToken)processors.get(i).initPC.getToken()).intValue();
+		}
+		CycleSimulator simulator = new CycleSimulator(memory, initialPC);
+		try{
+			simulator.setArbitrationPolicy(ArbitrationPolicy.forName(bus.arbitration.stringValue()));
+		}
+		catch(IllegalArgumentException e){
+			throw new IllegalActionException(bus, e, "Invalid arbitration policy");
+		}
+		simulator.setSplitTransactions(((BooleanToken)bus.splitTransactions.getToken()).booleanValue());
+
+		final int width = ((IntToken)bus.busWidth.getToken()).intValue();
+		final Trace simulatedAddress = new Trace(), simulatedData = new Trace();
+		simulator.setBusListener(new CycleSimulator.BusListener(){
+			public void addressBus(long cycle, int address){
+				simulatedAddress.add(cycle, BusStateTokens.get(address, width).stringValue());
+			}
+			public void dataBus(long cycle, int data){
+				simulatedData.add(cycle, BusStateTokens.get(data, width).stringValue());
+			}
+		});
+		long cycles = Math.round((stop - start) / period) + 1; // ticks from start to stop time inclusive
+		simulator.runUntil(cycles);
+
+		// comparison
+		System.out.println(modelFile + ": " + processors.size() + " masters, arbitration \"" + bus.arbitration.stringValue()
+				+ "\", split transactions " + simulator.split + ", " + cycles + " cycles");
+		boolean match = compare("address bus", trace(addressRecorder, start, period), simulatedAddress);
+		match &= compare("data bus", trace(dataRecorder, start, period), simulatedData);
+		match &= compare(modelMemory, simulator.getMemory());
+		System.out.println(match ? "simulator and actor model agree" : "simulator and actor model DIFFER");
+		return match;
+	}
+
+
+
+	// the single entity of the given class in the model, at any depth
+	protected static <T> T find(CompositeEntity top, Class<T> type) throws UnsupportedModelException{
+
+		T found = null;
+		for(Object entity : top.deepEntityList()){
+			if(type.isInstance(entity)){
+				if(found != null){
+					throw new UnsupportedModelException("More than one " + type.getName() + " in the model");
+				}
+				found = type.cast(entity);
+			}
+		}
+		if(found == null){
+			throw new UnsupportedModelException("No " + type.getName() + " in the model");
+		}
+		return found;
+	}
+
+
+
+	// records what the port sends, on the relation it already drives if any
+	protected static Recorder record(CompositeActor top, IOPort port, String name) throws Exception{
+
+		Recorder recorder = new Recorder(top, name);
+		List<?> relations = port.linkedRelationList();
+		if(relations.isEmpty()){
+			top.connect(port, recorder.input);
+		}
+		else{
+			recorder.input.link((IORelation)relations.get(0));
+		}
+		return recorder;
+	}
+
+
+
+	protected static Trace trace(Recorder recorder, double start, double period){
+
+		Trace trace = new Trace();
+		List<?> tokens = recorder.getHistory(0);
+		List<?> times = recorder.getTimeHistory();
+		for(int i=0;i<tokens.size();i++){
+			long cycle = Math.round((((Double)times.get(i)).doubleValue() - start) / period);
+			trace.add(cycle, ((StringToken)tokens.get(i)).stringValue());
+		}
+		return trace;
+	}
+
+
+
+	protected static boolean compare(String name, Trace model, Trace simulated){
+
+		int mismatches = 0;
+		int length = Math.min(model.states.size(), simulated.states.size());
+		for(int i=0;i<length;i++){
+			if(!model.cycles.get(i).equals(simulated.cycles.get(i)) || !model.states.get(i).equals(simulated.states.get(i))){
+				if(mismatches++ < REPORTED){
+					System.out.println(name + " change " + i + ": model " + model.states.get(i) + " on cycle " + model.cycles.get(i)
+							+ ", simulator " + simulated.states.get(i) + " on cycle " + simulated.cycles.get(i));
+				}
+			}
+		}
+
+		boolean match = mismatches == 0 && model.states.size() == simulated.states.size();
+		System.out.println(name + ": " + model.states.size() + " changes in the model, " + simulated.states.size()
+				+ " in the simulator, " + (match ? "same" : mismatches + " differ"));
+		return match;
+	}
+
+
+
+	protected static boolean compare(Memory model, Memory simulated){
+
+		int mismatches = 0;
+		for(int i=0;i<model.size();i++){
+			if(!model.same(i, simulated)){
+				if(mismatches++ < REPORTED){
+					System.out.println("memory cell " + i + ": model " + model.toString(i) + ", simulator "
+							+ simulated.toString(i));
+				}
+			}
+		}
+
+		System.out.println("final memory: " + (mismatches == 0 ? "same" : mismatches + " cells differ"));
+		return mismatches == 0;
+	}
+
+}
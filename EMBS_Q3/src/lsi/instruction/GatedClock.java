@@ -0,0 +1,183 @@
+package lsi.instruction;
+
+/*
+ *
+ * Actor represents the system clock, sending a token on its output port every period, starting at the model start time.
+ *
+ * Unlike ptolemy.actor.lib.Clock it only ticks when something needs the tick. Actors fed by the clock can implement
+ * ClockGated to report the next tick they need; while every actor fed by the clock reports a later time, the clock
+ * stays silent and is next fired at the first tick at or after the earliest of those times. Actors that do not
+ * implement ClockGated need every tick.
+ *
+ * The number of ticks sent and skipped (up to the model stop time) are available through getTicks and getSkippedTicks.
+ *
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ptolemy.actor.IOPort;
+import ptolemy.actor.TypedAtomicActor;
+import ptolemy.actor.TypedIOPort;
+import ptolemy.actor.util.Time;
+import ptolemy.data.DoubleToken;
+import ptolemy.data.IntToken;
+import ptolemy.data.Token;
+import ptolemy.data.expr.Parameter;
+import ptolemy.data.expr.Variable;
+import ptolemy.data.type.BaseType;
+import ptolemy.kernel.CompositeEntity;
+import ptolemy.kernel.util.Attribute;
+import ptolemy.kernel.util.IllegalActionException;
+import ptolemy.kernel.util.NameDuplicationException;
+import ptolemy.kernel.util.NamedObj;
+
+@SuppressWarnings("serial")
+public class GatedClock extends TypedAtomicActor {
+
+
+	protected TypedIOPort output;
+	protected Parameter period;
+
+	protected double periodValue;
+	protected Time nextTick;
+	protected ClockGated[] gated;
+	protected boolean ungated; // an actor fed by the clock needs every tick
+	protected long ticks, skippedTicks;
+
+	protected static final IntToken TICK = new IntToken(1);
+
+
+
+	public GatedClock(CompositeEntity container, String name)
+			throws NameDuplicationException, IllegalActionException  {
+
+		super(container, name);
+
+		output = new TypedIOPort(this, "output", false, true);
+		output.setTypeEquals(BaseType.INT);
+
+		period = new Parameter(this, "period");
+		period.setTypeEquals(BaseType.DOUBLE);
+		period.setExpression("0.00000001");
+	}
+
+
+
+	public void initialize() throws IllegalActionException{
+
+		super.initialize();
+
+		periodValue = ((DoubleToken)period.getToken()).doubleValue();
+		if(periodValue <= 0){
+			throw new IllegalActionException(this, "period must be positive");
+		}
+
+		// find which of the actors fed by the clock can be gated
+		List<ClockGated> actors = new ArrayList<ClockGated>();
+		ungated = false;
+		for(Object port : output.sinkPortList()){
+			NamedObj actor = ((IOPort)port).getContainer();
+			if(actor instanceof ClockGated){
+				if(!actors.contains(actor)) actors.add((ClockGated)actor);
+			}
+			else{
+				ungated = true;
+			}
+		}
+		gated = actors.toArray(new ClockGated[actors.size()]);
+
+		ticks = 0;
+		skippedTicks = 0;
+
+		nextTick = getDirector().getModelTime();
+		getDirector().fireAt(this, nextTick);
+	}
+
+
+
+	public void fire() throws IllegalActionException{
+
+		super.fire();
+
+		Time now = getDirector().getModelTime();
+		if(now.compareTo(nextTick) < 0){
+			return; // not a tick
+		}
+
+		Time wake = ungated ? null : getIdleUntil();
+
+		if(wake == null || wake.compareTo(now) <= 0){
+			output.send(0, TICK);
+			ticks++;
+			nextTick = now.add(periodValue);
+			getDirector().fireAt(this, nextTick);
+		}
+		else{ // skip to the first tick at or after wake
+			long skip = ticksUntil(now, wake);
+			skippedTicks += Math.min(skip, ticksUntil(now, getDirector().getModelStopTime().add(periodValue)));
+			if(!wake.isPositiveInfinite()){
+				nextTick = now.add(skip * periodValue);
+				getDirector().fireAt(this, nextTick);
+			}
+		}
+	}
+
+
+
+	// number of ticks from now up to, but not including, the first one at or after the given time
+	protected long ticksUntil(Time now, Time time){
+
+		if(time.isPositiveInfinite()){
+			return Long.MAX_VALUE;
+		}
+		double cycles = time.subtract(now).getDoubleValue() / periodValue;
+		return Math.abs(cycles - Math.rint(cycles)) < 1e-6 ? (long)Math.rint(cycles) : (long)Math.ceil(cycles);
+	}
+
+
+
+	// earliest tick needed by the gated actors, null if they need this one
+	protected Time getIdleUntil(){
+
+		Time earliest = Time.POSITIVE_INFINITY;
+		for(int i=0;i<gated.length;i++){
+			Time idleUntil = gated[i].getIdleUntil();
+			if(idleUntil == null){
+				return null;
+			}
+			if(idleUntil.compareTo(earliest) < 0){
+				earliest = idleUntil;
+			}
+		}
+		return earliest;
+	}
+
+
+
+	public long getTicks(){
+		return ticks;
+	}
+
+	public long getSkippedTicks(){
+		return skippedTicks;
+	}
+
+
+
+	// period of the clock driving the given port, read from its "period" parameter, or 0 if there is none
+	public static double period(IOPort clk) throws IllegalActionException{
+
+		for(Object port : clk.sourcePortList()){
+			Attribute attribute = ((IOPort)port).getContainer().getAttribute("period");
+			if(attribute instanceof Variable){
+				Token token = ((Variable)attribute).getToken();
+				if(token instanceof DoubleToken){
+					return ((DoubleToken)token).doubleValue();
+				}
+			}
+		}
+		return 0;
+	}
+
+}
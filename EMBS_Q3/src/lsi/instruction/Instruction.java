@@ -23,6 +23,9 @@ import ptolemy.kernel.util.IllegalActionException;
  * 
  * Instances are able to generate standard format RecordToken instances representing themselves.
  * 
+ * Memory contents are held field by field rather than as instances (see Memory), and use toString(type, data,
+ * address, time) to print cells in the same format.
+ * 
  */
 
 
@@ -91,13 +94,19 @@ public class Instruction {
 	
 	public String toString(){
 		
+		return toString(this.type, this.data, this.address, this.time);
+	}
+	
+	
+	public static String toString(int type, int data, int address, int time){
+		
 		String si = "";
 		
-		if(this.type==0) si="X "+this.time;
-		else if(this.type==1) si="R "+this.address;
-		else if(this.type==2) si="W "+this.address+ " "+this.data;
-		else if(this.type==3) si="J "+this.address;
-		else si="D "+this.data;
+		if(type==0) si="X "+time;
+		else if(type==1) si="R "+address;
+		else if(type==2) si="W "+address+ " "+data;
+		else if(type==3) si="J "+address;
+		else si="D "+data;
 		
 		return si;
 		
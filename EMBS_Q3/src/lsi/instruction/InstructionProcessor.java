@@ -11,6 +11,15 @@ package lsi.instruction;
  * via output port at every clock cycle until a GRANT token is received from the bus on 
  * the input port.
  * 
+ * The request token is built once on entering each of these states and the same token is resent
+ * on every cycle until granted. The number of such resent requests is counted (getRetriedRequests).
+ * 
+ * EXECUTE is event-driven when the period of the clock feeding the clk port can be found (from the "period"
+ * parameter of the clock, see GatedClock): rather than counting down on every clock, the actor works out the
+ * completion time, schedules a firing at that time with fireAt and ignores the clocks in between. It reports
+ * that time to a GatedClock (see ClockGated), so the clock need not tick meanwhile. If the period cannot be 
+ * found, EXECUTE counts down clocks as before.
+ * 
  * Upon GRANT token reception, actor closes the transaction and carries on in case of a
  * WRITE, or keeps waiting for a DATA token on the input  port in case of a READ.
  * 
@@ -19,6 +28,34 @@ package lsi.instruction;
  * 
  * Actor has a debug port which shows which state of the state machine it is in.
  * 
+ * Requests are sent as InstructionTokens, or as RecordTokens if the "record tokens" parameter is set. Either
+ * form is accepted on the input port.
+ * 
+ * Instructions can be prefetched by setting the "prefetch depth" parameter above 0 (the default). While in EXECUTE,
+ * actor then reads the instructions following the current one from memory, one bus READ at a time, into a buffer of
+ * that many instructions. On entering FETCH, an instruction found in the buffer is decoded straight away instead of
+ * being requested from the bus; the processor's own requests wait for an outstanding prefetch to complete. The buffer
+ * is discarded on a JUMP, and from the address written on a WRITE. Instructions are decoded in the same order as
+ * without prefetching, but as they read memory earlier, another processor writing to them may go unnoticed.
+ * 
+ * Prefetches issued, used and discarded are counted, along with the bus cycles, from grant to data, taken by the
+ * discarded ones (getPrefetches, getPrefetchHits, getWastedPrefetches, getWastedPrefetchCycles).
+ * 
+ * Writes can be posted to a write buffer by setting the "write buffer" parameter to its number of entries (0, no
+ * buffer, by default). A WRITE instruction then only stores its address and data in the buffer, replacing the data of
+ * a buffered write to the same address (coalescing), and actor carries on to FETCH. Buffered writes drain in order,
+ * oldest first, on the clocks the processor has no request of its own to send (in EXECUTE, ahead of prefetches, or
+ * in FETCH while its request is held), or when it is about to fetch an instruction at a buffered address. A write
+ * buffered for "write buffer timeout" clocks (16 by default) or more is sent instead of the processor's own FETCH or
+ * READ request, so that writes reach memory within a bounded time even when the processor never leaves the bus idle.
+ * A READ of a buffered address is answered by the buffer, without a bus request. A WRITE finding the buffer full waits
+ * in WRITE, draining the oldest write, and is posted once that write leaves the buffer, so writes reach memory in
+ * program order. Writes still buffered when the run ends would never reach memory, so wrapup then fails.
+ * 
+ * Writes buffered, coalesced and stalled on a full buffer, with the cycles spent waiting for room, reads answered by
+ * the buffer and the current and peak occupancy are available through getters and printed on wrapup, to standard
+ * error, when buffering. So are the prefetch counts when prefetching.
+ * 
  * 
  */
 
@@ -27,21 +64,27 @@ import ptolemy.actor.NoRoomException;
 import ptolemy.actor.TypedAtomicActor;
 import ptolemy.actor.TypedIOPort;
 import ptolemy.actor.util.Time;
+import ptolemy.data.BooleanToken;
 import ptolemy.data.IntToken;
 import ptolemy.data.DoubleToken;
-import ptolemy.data.RecordToken;
+import ptolemy.data.Token;
 import ptolemy.data.expr.Parameter;
 import ptolemy.data.expr.StringParameter;
 import ptolemy.data.type.BaseType;
 import ptolemy.kernel.CompositeEntity;
+import ptolemy.kernel.util.Attribute;
 import ptolemy.kernel.util.IllegalActionException;
 import ptolemy.kernel.util.NameDuplicationException;
 
 @SuppressWarnings("serial")
-public class InstructionProcessor extends TypedAtomicActor{
+public class InstructionProcessor extends TypedAtomicActor implements ClockGated{
 
 	protected TypedIOPort input, output, debug, clk;
 	protected Parameter initPC;
+	protected Parameter recordTokens;
+	protected Parameter prefetchDepth;
+	protected Parameter writeBuffer, writeBufferTimeout;
+	protected boolean records;
 	protected int PC;
 
 
@@ -49,6 +92,32 @@ public class InstructionProcessor extends TypedAtomicActor{
 	protected int timer=0;
 	protected int raddress;
 	protected int rdata;
+	protected Token request;
+	protected boolean requestSent;
+	protected long retriedRequests;
+	protected double clockPeriod; // 0 if unknown
+	protected Time executeUntil; // completion time of an event-driven EXECUTE
+	protected Time requestHold; // requests are only sent on clocks after this time
+
+	// prefetch buffer, instructions from address prefetchBase on
+	protected int depth;
+	protected InstructionToken[] prefetchBuffer;
+	protected int[] prefetchCycles; // bus cycles taken by each buffered prefetch
+	protected int prefetchHead, prefetchCount, prefetchBase;
+	protected int prefetchState;
+	protected int prefetchHeld; // bus cycles taken so far by the outstanding prefetch
+	protected long prefetches, prefetchHits, wastedPrefetches, wastedPrefetchCycles;
+
+	// write buffer, oldest write at writeHead
+	protected int writeBufferSize;
+	protected int[] writeAddresses, writeData;
+	protected int writeHead, writeCount;
+	protected long[] writePosted; // clock each write was buffered on
+	protected int timeout;
+	protected long clocks; // clocks received
+	protected boolean draining; // oldest write sent on the last clock, may be granted on this one
+	protected int peakWriteCount;
+	protected long bufferedWrites, coalescedWrites, forwardedReads, fullStalls, fullStallCycles;
 
 
 	protected static final int EXECUTE = 0;
@@ -58,6 +127,10 @@ public class InstructionProcessor extends TypedAtomicActor{
 	protected static final int DECODE = 4;
 	protected static final int DATA_WAIT = 5;
 
+	protected static final int PREFETCH_NONE = 0;
+	protected static final int PREFETCH_REQUESTED = 1; // sent on the last clock, may be granted on this one
+	protected static final int PREFETCH_GRANTED = 2; // waiting for the data
+
 
 
 
@@ -74,8 +147,10 @@ public class InstructionProcessor extends TypedAtomicActor{
 		debug = new TypedIOPort(this, "debug", false, true);
 		clk = new TypedIOPort(this, "clk", true, false);
 
-		input.setTypeEquals(Instruction.getTokenType());
-		output.setTypeEquals(Instruction.getTokenType());
+		recordTokens = new Parameter(this, "record tokens");
+		recordTokens.setTypeEquals(BaseType.BOOLEAN);
+		recordTokens.setExpression("false");
+		InstructionToken.setPortTypes(false, new TypedIOPort[]{input}, new TypedIOPort[]{output});
 		debug.setTypeEquals(BaseType.INT);
 
 
@@ -83,12 +158,76 @@ public class InstructionProcessor extends TypedAtomicActor{
 
 
 		initPC.setTypeEquals(BaseType.INT);
+
+		prefetchDepth = new Parameter(this, "prefetch depth");
+		prefetchDepth.setTypeEquals(BaseType.INT);
+		prefetchDepth.setExpression("0");
+
+		writeBuffer = new Parameter(this, "write buffer");
+		writeBuffer.setTypeEquals(BaseType.INT);
+		writeBuffer.setExpression("0");
+
+		writeBufferTimeout = new Parameter(this, "write buffer timeout");
+		writeBufferTimeout.setTypeEquals(BaseType.INT);
+		writeBufferTimeout.setExpression("16");
+	}
+
+
+	public void attributeChanged(Attribute attribute) throws IllegalActionException{
+
+		if(attribute == recordTokens){
+			records = ((BooleanToken)recordTokens.getToken()).booleanValue();
+			InstructionToken.setPortTypes(records, new TypedIOPort[]{input}, new TypedIOPort[]{output});
+		}
+		else{
+			super.attributeChanged(attribute);
+		}
 	}
 
 
 	public void initialize() throws IllegalActionException{
 
 		PC = ((IntToken)initPC.getToken()).intValue();
+		retriedRequests=0;
+		clockPeriod = GatedClock.period(clk);
+		requestHold = null;
+
+		depth = ((IntToken)prefetchDepth.getToken()).intValue();
+		if(depth < 0){
+			throw new IllegalActionException(this, "Prefetch depth must not be negative");
+		}
+		prefetchBuffer = new InstructionToken[depth];
+		prefetchCycles = new int[depth];
+		prefetchHead = 0;
+		prefetchCount = 0;
+		prefetchState = InstructionProcessor.PREFETCH_NONE;
+		prefetches = 0;
+		prefetchHits = 0;
+		wastedPrefetches = 0;
+		wastedPrefetchCycles = 0;
+
+		writeBufferSize = ((IntToken)writeBuffer.getToken()).intValue();
+		if(writeBufferSize < 0){
+			throw new IllegalActionException(this, "Write buffer size must not be negative");
+		}
+		writeAddresses = new int[writeBufferSize];
+		writeData = new int[writeBufferSize];
+		writePosted = new long[writeBufferSize];
+		timeout = ((IntToken)writeBufferTimeout.getToken()).intValue();
+		if(timeout < 0){
+			throw new IllegalActionException(this, "Write buffer timeout must not be negative");
+		}
+		clocks = 0;
+		writeHead = 0;
+		writeCount = 0;
+		draining = false;
+		peakWriteCount = 0;
+		bufferedWrites = 0;
+		coalescedWrites = 0;
+		forwardedReads = 0;
+		fullStalls = 0;
+		fullStallCycles = 0;
+
 		setState(InstructionProcessor.FETCH);
 		timer=0;
 	}
@@ -103,8 +242,34 @@ public class InstructionProcessor extends TypedAtomicActor{
 		if(clk.hasToken(0)){
 
 			clk.get(0); // consume clock token
+			clocks++;
 			if(timer!=0) timer--;  // decrement timer
 
+			if(state == InstructionProcessor.WRITE && writeBufferSize > 0) fullStallCycles++; // waiting on a full buffer
+
+			//
+			// PREFETCH OR BUFFERED WRITE, the input belongs to the outstanding one if any
+			//
+			if(prefetchState!=InstructionProcessor.PREFETCH_NONE && input.hasToken(0)){
+				receivePrefetch(InstructionToken.convert(input.get(0)));
+			}
+			else if(draining && input.hasToken(0)){
+				input.get(0); // GRANT of the oldest buffered write, which leaves the buffer
+				writeHead = (writeHead+1) % writeBufferSize;
+				writeCount--;
+				if(state == InstructionProcessor.WRITE){ // waiting for room, posted now
+					bufferWrite();
+					setState(InstructionProcessor.FETCH);
+				}
+			}
+			else if(prefetchState==InstructionProcessor.PREFETCH_REQUESTED){
+				prefetchState = InstructionProcessor.PREFETCH_NONE; // not granted, resent below if still wanted
+			}
+			else if(prefetchState==InstructionProcessor.PREFETCH_GRANTED){
+				prefetchHeld++;
+			}
+			draining = false; // if not granted, resent below if still wanted
+
 
 			//
 			// INPUT-TRIGGERED TRANSITIONS
@@ -124,6 +289,9 @@ public class InstructionProcessor extends TypedAtomicActor{
 				//
 				else if(state == InstructionProcessor.WRITE){
 					input.get(0); // GRANT received and consumed
+					if(prefetchCount>0 && raddress>=prefetchBase && raddress<prefetchBase+prefetchCount){
+						discardPrefetches(raddress-prefetchBase); // prefetched before being written
+					}
 					setState(InstructionProcessor.FETCH); // go back to FETCH state in the next cycle
 				}
 				//
@@ -145,29 +313,7 @@ public class InstructionProcessor extends TypedAtomicActor{
 				//
 				else if(state== InstructionProcessor.DECODE){
 
-					RecordToken token = (RecordToken)input.get(0);
-					IntToken insttype = (IntToken) token.get("type");
-
-					if(insttype.intValue()==Instruction.EXECUTE){   // must wait for a number of clock cycles
-
-						IntToken cycles = (IntToken) token.get("time"); 
-						timer = cycles.intValue(); // sets timer
-						setState(InstructionProcessor.EXECUTE);  // changes state to EXECUTE
-					}
-					else if(insttype.intValue()==Instruction.JUMP){  // must change the content of the PC
-						IntToken newPC = (IntToken) token.get("address"); 
-						PC = newPC.intValue(); // updates the PC
-						setState(InstructionProcessor.FETCH); // changes state to FETCH
-					}
-					else if(insttype.intValue()==Instruction.WRITE){  // must issue a write request
-						raddress = ((IntToken) token.get("address")).intValue();
-						rdata = ((IntToken) token.get("data")).intValue();
-						setState(InstructionProcessor.WRITE); // changes state to WRITE
-					}
-					else if(insttype.intValue()==Instruction.READ){  // must issue a read request
-						raddress = ((IntToken) token.get("address")).intValue();
-						setState(InstructionProcessor.READ); // changes state to READ
-					}
+					decode(InstructionToken.convert(input.get(0)));
 				}
 
 			}
@@ -176,36 +322,328 @@ public class InstructionProcessor extends TypedAtomicActor{
 			// CLOCK-TRIGGERED TRANSITIONS
 			//
 			else{
+				boolean sent = false; // own request sent on this clock
 				//
 				// EXECUTE
 				//
 				if(state== InstructionProcessor.EXECUTE){
-					if(timer==0){ // check if current execution has been finished
+					if(executeUntil!=null ? executeFinished() : timer==0){ // check if current execution has been finished
 						setState(InstructionProcessor.FETCH);  // if finished, move to FETCH state
 					}			
 				}
 				//
-				// WRITE (again, potentially), no state change
+				// FETCH OF A PREFETCHED INSTRUCTION, decoded without a bus request
 				//
-				else if(state == InstructionProcessor.WRITE){
-					output.send(0, new Instruction(Instruction.WRITE, rdata, raddress, -1).getToken());
+				else if(state== InstructionProcessor.FETCH && prefetchCount>0 && prefetchBase==PC
+						&& prefetchState!=InstructionProcessor.PREFETCH_GRANTED
+						&& (requestHold==null || getDirector().getModelTime().compareTo(requestHold) > 0)){
+					InstructionToken token = prefetchBuffer[prefetchHead];
+					prefetchHead = (prefetchHead+1) % depth;
+					prefetchCount--;
+					prefetchBase++;
+					prefetchHits++;
+					PC++; // increment PC
+					decode(token);
 				}
 				//
-				// READ (again, potentially), no state change
+				// FETCH OF A BUFFERED ADDRESS, its writes drain first
 				//
-				else if(state == InstructionProcessor.READ){
-					output.send(0, new Instruction(Instruction.READ, -1, raddress, -1).getToken());
+				else if(state== InstructionProcessor.FETCH && writeCount>0 && bufferedWrite(PC)!=-1
+						&& prefetchState!=InstructionProcessor.PREFETCH_GRANTED
+						&& (requestHold==null || getDirector().getModelTime().compareTo(requestHold) > 0)){
+					drainWrite();
+					sent = true;
 				}
 				//
-				// FETCH (again, potentially), no state change
+				// OVERDUE BUFFERED WRITE, sent instead of the FETCH or READ request
 				//
-				else if(state == InstructionProcessor.FETCH){
-					output.send(0, new Instruction(Instruction.READ, -1, PC, -1).getToken()); // issues a read request to the memory position in the PC
+				else if((state== InstructionProcessor.FETCH || state== InstructionProcessor.READ) && writeCount>0
+						&& clocks-writePosted[writeHead] >= timeout
+						&& prefetchState!=InstructionProcessor.PREFETCH_GRANTED
+						&& (requestHold==null || getDirector().getModelTime().compareTo(requestHold) > 0)){
+					drainWrite();
+					sent = true;
 				}
+				//
+				// WRITE, READ or FETCH (again, potentially), no state change
+				//
+				else if(request!=null && prefetchState!=InstructionProcessor.PREFETCH_GRANTED
+						&& (requestHold==null || getDirector().getModelTime().compareTo(requestHold) > 0)){
+					output.send(0, request); // issues the request built on entering the state
+					if(requestSent) retriedRequests++;
+					requestSent=true;
+					sent = true;
+				}
+
+				//
+				// DRAIN BUFFERED WRITES WHEN NOT USING THE BUS, OR PREFETCH THE NEXT INSTRUCTION WHILE EXECUTING
+				//
+				if(!sent && prefetchState==InstructionProcessor.PREFETCH_NONE){
+					if(writeCount>0 && (state==InstructionProcessor.EXECUTE || state==InstructionProcessor.WRITE
+							|| state==InstructionProcessor.FETCH)){
+						drainWrite();
+					}
+					else if(state== InstructionProcessor.EXECUTE && prefetchWanted()){
+						if(prefetchCount==0) prefetchBase = PC;
+						output.send(0, new InstructionToken(Instruction.READ, -1, prefetchBase+prefetchCount, -1).toToken(records));
+						prefetchState = InstructionProcessor.PREFETCH_REQUESTED;
+					}
+				}
+			}
+		}
+
+		//
+		// EVENT-DRIVEN EXECUTE FINISHED, woken by fireAt rather than a clock
+		//
+		else if(state== InstructionProcessor.EXECUTE && executeUntil!=null && executeFinished()){
+			setState(InstructionProcessor.FETCH);
+			requestHold = getDirector().getModelTime(); // first request on the next clock, as if finished on a clock
+		}
+
+
+	}
+
+
+
+
+	protected void decode(InstructionToken token) throws IllegalActionException{
+
+		if(token.type==Instruction.EXECUTE){   // must wait for a number of clock cycles
+
+			setState(InstructionProcessor.EXECUTE);  // changes state to EXECUTE
+			if(clockPeriod > 0 && token.time < 0){  // the countdown would never reach 0
+				executeUntil = Time.POSITIVE_INFINITY;
 			}
+			else if(clockPeriod > 0){  // wake up at the clock the countdown would have ended on
+				executeUntil = getDirector().getModelTime().add(Math.max(token.time, 1) * clockPeriod);
+				getDirector().fireAt(this, executeUntil);
+			}
+			else{
+				timer = token.time; // sets timer
+			}
+		}
+		else if(token.type==Instruction.JUMP){  // must change the content of the PC
+			PC = token.address; // updates the PC
+			discardPrefetches(0);
+			setState(InstructionProcessor.FETCH); // changes state to FETCH
+		}
+		else if(token.type==Instruction.WRITE){  // must issue a write request
+			raddress = token.address;
+			rdata = token.data;
+			if(writeBufferSize > 0 && bufferWrite()){
+				setState(InstructionProcessor.FETCH); // posted, carries on
+			}
+			else{
+				setState(InstructionProcessor.WRITE); // changes state to WRITE
+			}
+		}
+		else if(token.type==Instruction.READ){  // must issue a read request
+			raddress = token.address;
+			if(writeCount > 0 && bufferedWrite(raddress) != -1){
+				forwardedReads++; // answered by the write buffer
+				setState(InstructionProcessor.FETCH);
+			}
+			else{
+				setState(InstructionProcessor.READ); // changes state to READ
+			}
+		}
+	}
+
+
+
+	// handles a GRANT or DATA token of the outstanding prefetch
+	protected void receivePrefetch(InstructionToken token){
+
+		if(prefetchState==InstructionProcessor.PREFETCH_REQUESTED){ // GRANT
+			prefetchState = InstructionProcessor.PREFETCH_GRANTED;
+			prefetchHeld = 1;
+		}
+		else{ // DATA, buffered
+			int i = (prefetchHead+prefetchCount) % depth;
+			prefetchBuffer[i] = token;
+			prefetchCycles[i] = prefetchHeld+1;
+			prefetchCount++;
+			prefetches++;
+			prefetchState = InstructionProcessor.PREFETCH_NONE;
+		}
+	}
+
+
+
+	// whether there is room for another prefetch within memory, of an address not waiting to be written
+	protected boolean prefetchWanted(){
+
+		if(prefetchCount >= depth){
+			return false;
+		}
+		int address = prefetchCount==0 ? PC : prefetchBase+prefetchCount;
+		return address < MemoryController.SIZE && (writeCount==0 || bufferedWrite(address)==-1);
+	}
+
+
+
+	// posts the write of rdata to raddress, false if the buffer is full
+	protected boolean bufferWrite(){
+
+		int i = bufferedWrite(raddress);
+		if(i != -1){
+			writeData[i] = rdata;
+			coalescedWrites++;
+			return true;
+		}
+		if(writeCount == writeBufferSize){
+			fullStalls++;
+			return false;
+		}
+
+		if(prefetchCount>0 && raddress>=prefetchBase && raddress<prefetchBase+prefetchCount){
+			discardPrefetches(raddress-prefetchBase); // prefetched before being written
+		}
+		i = (writeHead+writeCount) % writeBufferSize;
+		writeAddresses[i] = raddress;
+		writeData[i] = rdata;
+		writePosted[i] = clocks;
+		writeCount++;
+		bufferedWrites++;
+		if(writeCount > peakWriteCount) peakWriteCount = writeCount;
+		return true;
+	}
+
+
+
+	// buffer entry holding a write to the given address, -1 if none
+	protected int bufferedWrite(int address){
+
+		for(int n=0;n<writeCount;n++){
+			int i = (writeHead+n) % writeBufferSize;
+			if(writeAddresses[i] == address) return i;
+		}
+		return -1;
+	}
+
+
+
+	// sends the oldest buffered write, which leaves the buffer when granted
+	protected void drainWrite() throws IllegalActionException{
+		output.send(0, new InstructionToken(Instruction.WRITE, writeData[writeHead], writeAddresses[writeHead], -1).toToken(records));
+		draining = true;
+	}
+
+
+
+	// discards the buffered instructions from the given one on
+	protected void discardPrefetches(int from){
+
+		for(int i=from;i<prefetchCount;i++){
+			wastedPrefetches++;
+			wastedPrefetchCycles += prefetchCycles[(prefetchHead+i) % depth];
 		}
+		prefetchCount = from;
+	}
+
 
 
+	protected boolean executeFinished(){
+		return getDirector().getModelTime().compareTo(executeUntil) >= 0;
+	}
+
+
+
+	public Time getIdleUntil(){
+
+		if(state != InstructionProcessor.EXECUTE || prefetchState != InstructionProcessor.PREFETCH_NONE || draining
+				|| writeCount > 0 || prefetchWanted()){
+			return null;
+		}
+		return executeUntil;
+	}
+
+
+
+	public long getRetriedRequests(){
+		return retriedRequests;
+	}
+
+	// prefetches completed
+	public long getPrefetches(){
+		return prefetches;
+	}
+
+	// prefetched instructions decoded
+	public long getPrefetchHits(){
+		return prefetchHits;
+	}
+
+	// prefetched instructions discarded on a JUMP or WRITE
+	public long getWastedPrefetches(){
+		return wastedPrefetches;
+	}
+
+	// bus cycles, from grant to data, taken by the discarded prefetches
+	public long getWastedPrefetchCycles(){
+		return wastedPrefetchCycles;
+	}
+
+	// prefetched instructions decoded, as a fraction of the prefetches completed
+	public double getPrefetchAccuracy(){
+		return prefetches == 0 ? 0 : (double)prefetchHits / prefetches;
+	}
+
+
+
+	public int getWriteBufferOccupancy(){
+		return writeCount;
+	}
+
+	public int getPeakWriteBufferOccupancy(){
+		return peakWriteCount;
+	}
+
+	// writes posted to a free entry of the buffer
+	public long getBufferedWrites(){
+		return bufferedWrites;
+	}
+
+	// writes merged into a buffered write to the same address
+	public long getCoalescedWrites(){
+		return coalescedWrites;
+	}
+
+	// reads answered by the write buffer
+	public long getForwardedReads(){
+		return forwardedReads;
+	}
+
+	// writes that found the buffer full, and waited for its oldest write to drain
+	public long getWriteBufferFullStalls(){
+		return fullStalls;
+	}
+
+	// clock cycles spent waiting for room in the buffer
+	public long getWriteBufferFullStallCycles(){
+		return fullStallCycles;
+	}
+
+
+
+	public void wrapup() throws IllegalActionException{
+
+		super.wrapup();
+
+		if(depth > 0){
+			System.err.println(getName() + ": " + prefetches + " prefetches, " + prefetchHits + " used, accuracy "
+					+ Math.round(getPrefetchAccuracy() * 1000) / 10.0 + "%, " + wastedPrefetches + " wasted taking "
+					+ wastedPrefetchCycles + " bus cycles");
+		}
+		if(writeBufferSize > 0){
+			System.err.println(getName() + ": " + bufferedWrites + " writes buffered, " + coalescedWrites + " coalesced, "
+					+ forwardedReads + " reads forwarded, " + fullStalls + " stalls on a full buffer taking " + fullStallCycles
+					+ " cycles, peak occupancy " + peakWriteCount + ", " + writeCount + " left");
+		}
+		if(writeCount > 0){
+			throw new IllegalActionException(this, writeCount + " buffered writes, the oldest to address " + writeAddresses[writeHead]
+					+ ", never reached memory: the run ended before they drained");
+		}
 	}
 
 
@@ -215,6 +653,25 @@ public class InstructionProcessor extends TypedAtomicActor{
 
 		state = newstate;
 		debug.send(0,  new IntToken(state));
+		executeUntil = null;
+
+		// build the request for the states that issue one, resent until granted
+		if(state == InstructionProcessor.WRITE && writeBufferSize > 0){
+			request = null; // waiting for room in the buffer, see fire
+		}
+		else if(state == InstructionProcessor.WRITE){
+			request = new InstructionToken(Instruction.WRITE, rdata, raddress, -1).toToken(records);
+		}
+		else if(state == InstructionProcessor.READ){
+			request = new InstructionToken(Instruction.READ, -1, raddress, -1).toToken(records);
+		}
+		else if(state == InstructionProcessor.FETCH){
+			request = new InstructionToken(Instruction.READ, -1, PC, -1).toToken(records); // read request to the memory position in the PC
+		}
+		else{
+			request = null;
+		}
+		requestSent = false;
 
 	}
 
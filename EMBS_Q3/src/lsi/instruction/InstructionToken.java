@@ -0,0 +1,135 @@
+package lsi.instruction;
+
+import ptolemy.actor.TypedIOPort;
+import ptolemy.data.IntToken;
+import ptolemy.data.ObjectToken;
+import ptolemy.data.RecordToken;
+import ptolemy.data.Token;
+import ptolemy.data.type.BaseType;
+import ptolemy.kernel.util.IllegalActionException;
+
+/*
+ *
+ * Token carrying an Instruction word over the LSI bus, as four primitive fields rather than a RecordToken
+ * of IntTokens, so that reading a field is a field access instead of a string-keyed lookup and unboxing.
+ *
+ * Being an ObjectToken, it travels on ports of type object. Actors that use it accept both forms on their
+ * inputs (see convert), and send it out unless their "record tokens" parameter is set, in which case
+ * RecordTokens in the lsi.instruction.Instruction format are sent instead, for connection to actors that
+ * expect those. The record form of a token is built once, on first use.
+ *
+ */
+
+
+@SuppressWarnings("serial")
+public class InstructionToken extends ObjectToken {
+
+	public final int type;
+	public final int data;
+	public final int address;
+	public final int time;
+
+	private RecordToken record;
+
+
+
+	public InstructionToken(int type, int data, int address, int time){
+
+		this.type = type;
+		this.data = data;
+		this.address = address;
+		this.time = time;
+	}
+
+
+	public InstructionToken(Instruction instruction){
+
+		this(instruction.type, instruction.data, instruction.address, instruction.time);
+	}
+
+
+
+	// accepts either form of instruction token
+	public static InstructionToken convert(Token token) throws IllegalActionException{
+
+		if(token instanceof InstructionToken){
+			return (InstructionToken)token;
+		}
+		else if(token instanceof RecordToken){
+			RecordToken t = (RecordToken)token;
+			InstructionToken converted = new InstructionToken(((IntToken)t.get("type")).intValue(), ((IntToken)t.get("data")).intValue(),
+					((IntToken)t.get("address")).intValue(), ((IntToken)t.get("time")).intValue());
+			converted.record = t;
+			return converted;
+		}
+		throw new IllegalActionException("Not an instruction token: " + token);
+	}
+
+
+
+	public RecordToken toRecordToken() throws IllegalActionException{
+
+		if(record == null){ // tokens are immutable, so the record can be kept
+			record = getInstruction().getToken();
+		}
+		return record;
+	}
+
+
+	// the token to send out of a port configured by setPortTypes
+	public Token toToken(boolean records) throws IllegalActionException{
+
+		return records ? toRecordToken() : this;
+	}
+
+
+
+	public Instruction getInstruction(){
+
+		return new Instruction(type, data, address, time);
+	}
+
+
+	public Object getValue(){
+
+		return getInstruction();
+	}
+
+
+
+	// inputs accept either form, outputs carry the form selected
+	public static void setPortTypes(boolean records, TypedIOPort[] inputs, TypedIOPort[] outputs){
+
+		for(int i=0;i<inputs.length;i++){
+			inputs[i].setTypeEquals(BaseType.UNKNOWN);
+			inputs[i].setTypeAtMost(BaseType.GENERAL);
+		}
+		for(int i=0;i<outputs.length;i++){
+			outputs[i].setTypeEquals(records ? Instruction.getTokenType() : BaseType.OBJECT);
+		}
+	}
+
+
+
+	public boolean equals(Object object){
+
+		if(!(object instanceof InstructionToken)){
+			return false;
+		}
+		InstructionToken t = (InstructionToken)object;
+		return t.type == type && t.data == data && t.address == address && t.time == time;
+	}
+
+
+	public int hashCode(){
+
+		return ((type * 31 + data) * 31 + address) * 31 + time;
+	}
+
+
+	public String toString(){
+
+		return "{address = " + address + ", data = " + data + ", time = " + time + ", type = " + type + "}";
+	}
+
+}
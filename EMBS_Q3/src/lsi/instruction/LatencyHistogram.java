@@ -0,0 +1,81 @@
+package lsi.instruction;
+
+/*
+ *
+ * Histogram of latencies in clock cycles, with one fixed bucket per cycle up to BUCKETS - 1 and a single overflow
+ * bucket above. Recording a value is an array increment; the exact maximum and sum are kept alongside.
+ *
+ * Percentiles are nearest-rank: the smallest latency at or below which the given fraction of the recorded values lie.
+ * A percentile falling in the overflow bucket is reported as the maximum.
+ *
+ */
+
+public class LatencyHistogram {
+
+
+	public static final int BUCKETS = 1024;
+
+	protected final long[] buckets = new long[BUCKETS + 1]; // last one for overflow
+	protected long count, sum, max;
+
+
+
+	public void record(long cycles){
+
+		buckets[cycles < BUCKETS ? (int)cycles : BUCKETS]++;
+		count++;
+		sum += cycles;
+		if(cycles > max) max = cycles;
+	}
+
+
+
+	public void reset(){
+
+		for(int i=0;i<buckets.length;i++){
+			buckets[i] = 0;
+		}
+		count = 0;
+		sum = 0;
+		max = 0;
+	}
+
+
+
+	// latency at or below which the given fraction (0 to 1) of values lie, 0 if none were recorded
+	public long percentile(double fraction){
+
+		if(count == 0){
+			return 0;
+		}
+
+		long rank = Math.max(1, (long)Math.ceil(fraction * count));
+		long seen = 0;
+		for(int i=0;i<BUCKETS;i++){
+			seen += buckets[i];
+			if(seen >= rank) return i;
+		}
+		return max;
+	}
+
+
+
+	public long getCount(){
+		return count;
+	}
+
+	public long getMax(){
+		return max;
+	}
+
+	public double getMean(){
+		return count == 0 ? 0 : (double)sum / count;
+	}
+
+
+
+	public String toString(){
+		return "p50 " + percentile(0.5) + " p99 " + percentile(0.99) + " max " + max;
+	}
+
+}
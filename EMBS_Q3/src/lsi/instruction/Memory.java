@@ -0,0 +1,93 @@
+package lsi.instruction;
+
+/*
+ *
+ * Contents of a memory of Instruction words, held as one int array per field (type, data, address and time) rather
+ * than as Instruction instances. Every value an Instruction field can hold is stored as is. Instruction objects are
+ * only created when a cell is read (see getInstruction).
+ *
+ * The arrays are public so that simulators can read cells without a call per field; cells are written through set
+ * and write.
+ *
+ */
+
+import java.util.Arrays;
+
+public final class Memory {
+
+
+	public final int[] type, data, address, time;
+
+
+
+	// a memory of the given number of cells, each a data word of 0
+	public Memory(int cells){
+
+		type = new int[cells];
+		data = new int[cells];
+		address = new int[cells];
+		time = new int[cells];
+		Arrays.fill(type, Instruction.DATA);
+		Arrays.fill(address, -1);
+		Arrays.fill(time, -1);
+	}
+
+	private Memory(Memory memory){
+
+		type = memory.type.clone();
+		data = memory.data.clone();
+		address = memory.address.clone();
+		time = memory.time.clone();
+	}
+
+
+
+	public int size(){
+		return type.length;
+	}
+
+	public Memory copy(){
+		return new Memory(this);
+	}
+
+
+
+	public void set(int cell, int type, int data, int address, int time){
+
+		this.type[cell] = type;
+		this.data[cell] = data;
+		this.address[cell] = address;
+		this.time[cell] = time;
+	}
+
+	// stores a data word, as a WRITE does
+	public void write(int cell, int data){
+
+		set(cell, Instruction.DATA, data, -1, -1);
+	}
+
+	// copies a cell of another memory of the same size
+	public void set(int cell, Memory memory){
+
+		set(cell, memory.type[cell], memory.data[cell], memory.address[cell], memory.time[cell]);
+	}
+
+
+
+	// whether a cell holds the same word in both memories
+	public boolean same(int cell, Memory memory){
+
+		return type[cell] == memory.type[cell] && data[cell] == memory.data[cell] && address[cell] == memory.address[cell]
+				&& time[cell] == memory.time[cell];
+	}
+
+	public Instruction getInstruction(int cell){
+		return new Instruction(type[cell], data[cell], address[cell], time[cell]);
+	}
+
+	// the cell in the format of Instruction.toString
+	public String toString(int cell){
+		return Instruction.toString(type[cell], data[cell], address[cell], time[cell]);
+	}
+
+}
@@ -4,43 +4,70 @@ package lsi.instruction;
  * 
  * Actor represents a 16-bit word Memory and its controller.
  * 
- * Memory contents are instances of the Instruction class.
+ * Memory contents are Instruction words, stored field by field in int arrays (see Memory) rather than as 
+ * Instruction instances. Instruction objects are only created when a cell is read.
  * 
- * Its contents are initialised out of a text file specified as a parameter, which is parsed upon initialisation.
+ * Its contents are initialised out of a file specified as a parameter, which is read upon initialisation. It can be 
+ * either the five-column text format (.txt) or a binary memory image (see MemoryImage).
  * 
- * It receives RecordToken instances (following the lsi.instruction.Instruction format) over its input port, and reacts
+ * Requests and responses are InstructionTokens, or RecordTokens if the "record tokens" parameter is set (see 
+ * InstructionToken). The token sent back for a read is cached per cell, and only rebuilt after a write to that cell. The number 
+ * of reads served from the cache and rebuilt are available through getTokenCacheHits/getTokenCacheMisses.
+ * 
+ * The controller needs no clock ticks unless a read is pending, and reports so to a GatedClock (see ClockGated).
+ * 
+ * On wrapup the memory is dumped according to the "dump mode" parameter: every cell (full, the default), only the 
+ * cells that differ from the initial contents (changed) or nothing (none). The dump goes to standard output, or 
+ * to the "dump file" if set, as text if it ends in .txt and in binary otherwise (see MemoryImage).
+ * 
+ * It receives instruction tokens (following the lsi.instruction.Instruction format) over its input port, and reacts
  * to read or write requests accordingly.
  * 
  *  * 
  */
 
 
-import java.io.BufferedReader;
-import java.io.FileReader;
+import java.io.BufferedWriter;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
 import java.util.Scanner;
-import java.util.StringTokenizer;
 
 import ptolemy.actor.TypedAtomicActor;
 import ptolemy.actor.TypedIOPort;
 import ptolemy.actor.util.Time;
+import ptolemy.data.BooleanToken;
 import ptolemy.data.DoubleToken;
-import ptolemy.data.IntToken;
-import ptolemy.data.RecordToken;
+import ptolemy.data.expr.Parameter;
 import ptolemy.data.expr.StringParameter;
 import ptolemy.data.type.BaseType;
 import ptolemy.kernel.CompositeEntity;
+import ptolemy.kernel.util.Attribute;
 import ptolemy.kernel.util.IllegalActionException;
 import ptolemy.kernel.util.NameDuplicationException;
 
 @SuppressWarnings("serial")
-public class MemoryController extends TypedAtomicActor {
+public class MemoryController extends TypedAtomicActor implements ClockGated {
 
 
 	protected TypedIOPort input, output, clk;
-	protected Instruction[] memory;
+	protected Memory memory;
+	protected Memory initialMemory;
+	protected InstructionToken[] tokenCache;
+	protected long tokenCacheHits, tokenCacheMisses;
 	int readAddress;
+
 	StringParameter memoryFile;
+	StringParameter dumpMode, dumpFile;
+	Parameter recordTokens;
+	protected boolean records;
+
+	public final static int SIZE = 65536; // words
+
+	public final static String DUMP_FULL = "full";
+	public final static String DUMP_CHANGED = "changed";
+	public final static String DUMP_NONE = "none";
 
 	public MemoryController(CompositeEntity container, String name)
 			throws NameDuplicationException, IllegalActionException  {
@@ -53,25 +80,43 @@ public class MemoryController extends TypedAtomicActor {
 		clk = new TypedIOPort(this, "clk", true, false);
 
 
-		input.setTypeEquals(Instruction.getTokenType());
-		output.setTypeEquals(Instruction.getTokenType());
+		recordTokens = new Parameter(this, "record tokens");
+		recordTokens.setTypeEquals(BaseType.BOOLEAN);
+		recordTokens.setExpression("false");
+		InstructionToken.setPortTypes(false, new TypedIOPort[]{input}, new TypedIOPort[]{output});
 
 		memoryFile = new StringParameter(this, "memory file");
 		memoryFile.setExpression("test");
 
+		dumpMode = new StringParameter(this, "dump mode");
+		dumpMode.addChoice(DUMP_FULL);
+		dumpMode.addChoice(DUMP_CHANGED);
+		dumpMode.addChoice(DUMP_NONE);
+		dumpMode.setExpression(DUMP_FULL);
+
+		dumpFile = new StringParameter(this, "dump file");
+		dumpFile.setExpression(""); // standard output
 
 	}
 
 	@Override
-	public void initialize() throws IllegalActionException{
+	public void attributeChanged(Attribute attribute) throws IllegalActionException{
 
-		readAddress = -1;
-		memory = new Instruction[65536];
-		for(int i=0;i<memory.length;i++){
+		if(attribute == recordTokens){
+			records = ((BooleanToken)recordTokens.getToken()).booleanValue();
+			InstructionToken.setPortTypes(records, new TypedIOPort[]{input}, new TypedIOPort[]{output});
+		}
+		else{
+			super.attributeChanged(attribute);
+		}
+	}
 
-			memory[i]= new Instruction(-1, 0, -1, -1); 						// data: 0
 
-		}
+	@Override
+	public void initialize() throws IllegalActionException{
+
+		readAddress = -1;
+		memory = emptyMemory();
 
 
 		if(memoryFile.stringValue().equals("test")){
@@ -79,21 +124,7 @@ public class MemoryController extends TypedAtomicActor {
 		}
 		else{
 			try{
-				FileReader f = new FileReader(memoryFile.stringValue());
-				BufferedReader r = new BufferedReader(f);
-				String line;
-				while ((line = r.readLine()) != null) {
-					StringTokenizer st = new StringTokenizer(line);
-					int storage = Integer.parseInt(st.nextToken()); 
-					int type = Integer.parseInt(st.nextToken()); 
-					int data = Integer.parseInt(st.nextToken()); 
-					int address = Integer.parseInt(st.nextToken()); 
-					int time = Integer.parseInt(st.nextToken()); 
-
-					memory[storage] = new Instruction(type, data, address, time);
-				}
-				
-				r.close();
+				MemoryImage.load(memoryFile.stringValue(), memory); // text or binary image, see MemoryImage
 			}
 			catch(IOException e){
 				System.out.println("Reading from file failed: " + e);
@@ -101,6 +132,20 @@ public class MemoryController extends TypedAtomicActor {
 
 		}
 
+		// kept to dump only the changed cells, not needed otherwise
+		initialMemory = dumpMode.stringValue().equals(DUMP_CHANGED) ? memory.copy() : null;
+
+		tokenCache = new InstructionToken[memory.size()];
+		tokenCacheHits = 0;
+		tokenCacheMisses = 0;
+
+	}
+
+
+
+	public static Memory emptyMemory(){
+
+		return new Memory(SIZE); 						// data: 0
 	}
 
 
@@ -114,7 +159,7 @@ public class MemoryController extends TypedAtomicActor {
 
 			if(readAddress!=-1){ //if a read has been requested, perform it
 
-				output.send(0, memory[readAddress].getToken()); // sends back the content of the requested memory address
+				output.send(0, getToken(readAddress).toToken(records)); // sends back the content of the requested memory address
 				readAddress=-1;  // confirm that read has been performed
 			}	
 		}
@@ -123,19 +168,19 @@ public class MemoryController extends TypedAtomicActor {
 
 		else if(input.hasToken(0)){ 
 
-			RecordToken t = (RecordToken)input.get(0);
-			int type = ((IntToken)t.get("type")).intValue();
-			if(type==Instruction.READ){  // set address to be read and sent back on the next clock cycle
-				readAddress = ((IntToken)t.get("address")).intValue();
+			InstructionToken t = InstructionToken.convert(input.get(0));
+			if(t.type==Instruction.READ){  // set address to be read and sent back on the next clock cycle
+				readAddress = t.address;
 				assert readAddress != -1;
 			}
-			else if(type==Instruction.WRITE){ // write to memory immediately
-				int address = ((IntToken)t.get("address")).intValue();
+			else if(t.type==Instruction.WRITE){ // write to memory immediately
+				int address = t.address;
 				assert address != -1;
-				int data = ((IntToken)t.get("data")).intValue();
+				int data = t.data;
 				assert data != -1;
 
-				memory[address] = new Instruction(-1,data,-1,-1);  // write to memory
+				memory.write(address, data);  // write to memory
+				tokenCache[address] = null; // rebuilt on the next read
 			}
 
 		}		
@@ -143,10 +188,42 @@ public class MemoryController extends TypedAtomicActor {
 	}
 
 	@Override
-	public void wrapup(){
+	public void wrapup() throws IllegalActionException{
 
-		for(int i=0;i<memory.length;i++){
-			System.out.println(i+" "+memory[i]);
+		String mode = dumpMode.stringValue();
+		if(mode.equals(DUMP_NONE)){
+			return;
+		}
+		if(!mode.equals(DUMP_FULL) && !mode.equals(DUMP_CHANGED)){
+			throw new IllegalActionException(this, "Unknown dump mode: " + mode);
+		}
+		Memory initial = mode.equals(DUMP_CHANGED) ? initialMemory : null;
+		String fileName = dumpFile.stringValue();
+
+		try{
+			if(fileName.length() == 0){ // buffered, instead of a println per cell
+				Writer out = new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16);
+				MemoryImage.writeText(out, memory, initial);
+				out.flush();
+			}
+			else if(MemoryImage.isText(fileName)){
+				Writer out = new BufferedWriter(new FileWriter(fileName), 1 << 16);
+				try{
+					MemoryImage.writeText(out, memory, initial);
+				}
+				finally{
+					out.close();
+				}
+			}
+			else if(initial != null){
+				MemoryImage.writeChanges(fileName, initial, memory);
+			}
+			else{
+				MemoryImage.writeImage(fileName, memory);
+			}
+		}
+		catch(IOException e){
+			throw new IllegalActionException(this, e, "Writing memory dump failed");
 		}
 	}
 
@@ -154,35 +231,77 @@ public class MemoryController extends TypedAtomicActor {
 
 
 
+	// writes and read requests are handled on arrival, only sending read data needs a clock
+	public Time getIdleUntil(){
+
+		return readAddress==-1 ? Time.POSITIVE_INFINITY : null;
+	}
+
+
+
+	public Instruction getInstruction(int address){
+
+		return memory.getInstruction(address);
+	}
+
+
+
+	// tokens are immutable, so the same one can be sent for every read until the cell is written
+	protected InstructionToken getToken(int address){
+
+		InstructionToken token = tokenCache[address];
+		if(token == null){
+			token = new InstructionToken(getInstruction(address));
+			tokenCache[address] = token;
+			tokenCacheMisses++;
+		}
+		else{
+			tokenCacheHits++;
+		}
+		return token;
+	}
+
+
+
+	public long getTokenCacheHits(){
+		return tokenCacheHits;
+	}
+
+	public long getTokenCacheMisses(){
+		return tokenCacheMisses;
+	}
+
+
+
 	public void createTestProgram(){
 
-		memory[0] = new Instruction(Instruction.READ, 41260, 10, -1);  		//READ 10
-		memory[1] = new Instruction(Instruction.READ, 41204, 11, -1);  		//READ 11
-		memory[2] = new Instruction(Instruction.EXECUTE, 8240, -1, 1);  	//EXECUTE 1
-		memory[3] = new Instruction(Instruction.WRITE, 4096, 21, -1);  		//WRITE  on 21
-		memory[4] = new Instruction(Instruction.READ, 41218, 12, -1);  		//READ 12
-		memory[5] = new Instruction(Instruction.WRITE, 4122, 22, -1);  		//WRITE  on 22
-		memory[6] = new Instruction(Instruction.JUMP, 61444, 100, -1);  		//JUMP to 100
+		memory.set(0, Instruction.READ, 41260, 10, -1);  		//READ 10
+		memory.set(1, Instruction.READ, 41204, 11, -1);  		//READ 11
+		memory.set(2, Instruction.EXECUTE, 8240, -1, 1);  	//EXECUTE 1
+		memory.set(3, Instruction.WRITE, 4096, 21, -1);  		//WRITE  on 21
+		memory.set(4, Instruction.READ, 41218, 12, -1);  		//READ 12
+		memory.set(5, Instruction.WRITE, 4122, 22, -1);  		//WRITE  on 22
+		memory.set(6, Instruction.JUMP, 61444, 100, -1);  		//JUMP to 100
 
 
-		memory[10] = new Instruction(-1, 910, -1, -1); 						// data: 910
-		memory[11] = new Instruction(-1, 911, -1, -1); 						// data: 911
-		memory[12] = new Instruction(-1, 912, -1, -1); 						// data: 912
+		memory.set(10, -1, 910, -1, -1); 						// data: 910
+		memory.set(11, -1, 911, -1, -1); 						// data: 911
+		memory.set(12, -1, 912, -1, -1); 						// data: 912
 
 
 
-		memory[100] = new Instruction(Instruction.READ, 44011, 110, -1);  		//READ 110
-		memory[101] = new Instruction(Instruction.READ, 44012, 111, -1);  		//READ 111
-		memory[102] = new Instruction(Instruction.EXECUTE, 8844, -1, 1); 	 	//EXECUTE 1
-		memory[103] = new Instruction(Instruction.WRITE, 5189, 23, -1);  	//WRITE  on 23
-		memory[104] = new Instruction(Instruction.READ, 44011, 112, -1);  		//READ 112
-		memory[105] = new Instruction(Instruction.WRITE, 5189, 24, -1);  	//WRITE  on 24
-		memory[106] = new Instruction(Instruction.EXECUTE, 8333, -1, 1000);  	//EXECUTE 1000
-		memory[107] = new Instruction(Instruction.JUMP, 61444, 0,-1);  		//JUMP to 0
+		memory.set(100, Instruction.READ, 44011, 110, -1);  		//READ 110
+		memory.set(101, Instruction.READ, 44012, 111, -1);  		//READ 111
+		memory.set(102, Instruction.EXECUTE, 8844, -1, 1); 	 	//EXECUTE 1
+		memory.set(103, Instruction.WRITE, 5189, 23, -1);  	//WRITE  on 23
+		memory.set(104, Instruction.READ, 44011, 112, -1);  		//READ 112
+		memory.set(105, Instruction.WRITE, 5189, 24, -1);  	//WRITE  on 24
+		memory.set(106, Instruction.EXECUTE, 8333, -1, 1000);  	//EXECUTE 1000
+		memory.set(107, Instruction.JUMP, 61444, 0,-1);  		//JUMP to 0
 
-		memory[110] = new Instruction(-1, 1910, -1, -1); 						// data: 1910
-		memory[111] = new Instruction(-1, 1911, -1, -1); 						// data: 1911
-		memory[112] = new Instruction(-1, 1912, -1, -1); 						// data: 1912
+		memory.set(110, -1, 1910, -1, -1); 						// data: 1910
+		memory.set(111, -1, 1911, -1, -1); 						// data: 1911
+		memory.set(112, -1, 1912, -1, -1); 						// data: 1912
 
 
 
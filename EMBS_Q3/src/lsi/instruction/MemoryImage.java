@@ -0,0 +1,282 @@
+package lsi.instruction;
+
+/*
+ *
+ * Loading and saving of memory contents for the MemoryController.
+ *
+ * Two formats are supported. The text format has one line per initialised cell, with five columns:
+ * storage address, type, data, address and time.
+ *
+ * The binary image format is a 4-byte magic number, a 4-byte cell count and then the type, data, address and
+ * time fields of every cell, as four arrays of 4-byte ints (see Memory), all big-endian. It is loaded by mapping the
+ * file, with no per-line parsing. A dump of the changed cells (see below) can be loaded too, over the memory it applies to. Files are
+ * told apart by their first 4 bytes: a file not starting with either magic number is read as text, whatever its
+ * name.
+ *
+ * Memory dumps (see MemoryController.wrapup) use the text format of Instruction.toString, one cell per line,
+ * if their file name ends in .txt, or a binary image otherwise. A dump of the changed cells only is written in
+ * binary as a 4-byte magic number, a 4-byte count and then, per changed cell, its address and its type, data, address
+ * and time fields, 4 bytes each. Images and dumps of the earlier format, which packed each cell into 8 bytes, are
+ * rejected.
+ *
+ * Running this class converts a text memory file into a binary image:
+ *
+ * 		java lsi.instruction.MemoryImage memory.txt memory.img
+ *
+ */
+
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.StringTokenizer;
+
+public final class MemoryImage {
+
+
+	public final static int MAGIC = 0x454D4232; // "EMB2"
+	public final static int CHANGES_MAGIC = 0x454D4432; // "EMD2"
+	private final static int PACKED_MAGIC = 0x454D4231, PACKED_CHANGES_MAGIC = 0x454D4431; // "EMB1", "EMD1"
+	private final static int CELL_BYTES = 16;
+	public final static int HEADER_BYTES = 8;
+	public final static String TEXT_SUFFIX = ".txt";
+
+
+	private MemoryImage(){
+	}
+
+
+
+	// whether a dump to the given file is written as text
+	public static boolean isText(String fileName){
+
+		return fileName.toLowerCase().endsWith(TEXT_SUFFIX);
+	}
+
+
+	// loads the file into memory, the cells it does not cover are left untouched
+	public static void load(String fileName, Memory memory) throws IOException{
+
+		int magic = magic(fileName);
+		if(magic == PACKED_MAGIC || magic == PACKED_CHANGES_MAGIC){
+			throw new IOException(fileName + " is in the earlier packed format, convert its text memory file again.");
+		}
+		else if(magic == MAGIC){
+			readImage(fileName, memory);
+		}
+		else if(magic == CHANGES_MAGIC){
+			readChanges(fileName, memory);
+		}
+		else{
+			readText(fileName, memory);
+		}
+	}
+
+
+
+	// first 4 bytes of the file, big-endian, 0 if shorter
+	private static int magic(String fileName) throws IOException{
+
+		DataInputStream in = new DataInputStream(new FileInputStream(fileName));
+		try{
+			return in.readInt();
+		}
+		catch(EOFException e){
+			return 0;
+		}
+		finally{
+			in.close();
+		}
+	}
+
+
+
+	public static void readText(String fileName, Memory memory) throws IOException{
+
+		BufferedReader r = new BufferedReader(new FileReader(fileName));
+		try{
+			String line;
+			int lineNumber = 0;
+			while ((line = r.readLine()) != null) {
+				lineNumber++;
+				StringTokenizer st = new StringTokenizer(line);
+				if(!st.hasMoreTokens()){
+					continue; // blank line
+				}
+				int storage = Integer.parseInt(st.nextToken());
+				int type = Integer.parseInt(st.nextToken());
+				int data = Integer.parseInt(st.nextToken());
+				int address = Integer.parseInt(st.nextToken());
+				int time = Integer.parseInt(st.nextToken());
+
+				if(storage < 0 || storage >= memory.size()){
+					throw new IOException(fileName + ", line " + lineNumber + ": storage address " + storage + " is outside a memory of " + memory.size() + ".");
+				}
+
+				memory.set(storage, type, data, address, time);
+			}
+		}
+		finally{
+			r.close();
+		}
+	}
+
+
+
+	public static void readImage(String fileName, Memory memory) throws IOException{
+
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		try{
+			FileChannel channel = file.getChannel();
+			if(channel.size() < HEADER_BYTES){
+				throw new IOException(fileName + " is not a memory image.");
+			}
+
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if(buffer.getInt() != MAGIC){
+				throw new IOException(fileName + " is not a memory image.");
+			}
+
+			int cells = buffer.getInt();
+			if(cells < 0 || cells > memory.size() || buffer.remaining() < (long)cells * CELL_BYTES){
+				throw new IOException(fileName + " holds " + cells + " cells, does not fit a memory of " + memory.size() + ".");
+			}
+
+			IntBuffer fields = buffer.asIntBuffer();
+			fields.get(memory.type, 0, cells);
+			fields.get(memory.data, 0, cells);
+			fields.get(memory.address, 0, cells);
+			fields.get(memory.time, 0, cells);
+		}
+		finally{
+			file.close();
+		}
+	}
+
+
+
+	public static void readChanges(String fileName, Memory memory) throws IOException{
+
+		RandomAccessFile file = new RandomAccessFile(fileName, "r");
+		try{
+			FileChannel channel = file.getChannel();
+			if(channel.size() < HEADER_BYTES){
+				throw new IOException(fileName + " is not a memory changes dump.");
+			}
+
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			if(buffer.getInt() != CHANGES_MAGIC){
+				throw new IOException(fileName + " is not a memory changes dump.");
+			}
+
+			int changes = buffer.getInt();
+			if(changes < 0 || buffer.remaining() < (long)changes * (4 + CELL_BYTES)){
+				throw new IOException(fileName + " is truncated, " + changes + " changes expected.");
+			}
+
+			for(int i=0;i<changes;i++){
+				int address = buffer.getInt();
+				if(address < 0 || address >= memory.size()){
+					throw new IOException(fileName + " changes cell " + address + ", outside a memory of " + memory.size() + ".");
+				}
+				memory.set(address, buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getInt());
+			}
+		}
+		finally{
+			file.close();
+		}
+	}
+
+
+
+	public static void writeImage(String fileName, Memory memory) throws IOException{
+
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + memory.size() * CELL_BYTES);
+		buffer.putInt(MAGIC);
+		buffer.putInt(memory.size());
+		buffer.asIntBuffer().put(memory.type).put(memory.data).put(memory.address).put(memory.time);
+		buffer.rewind(); // the int view does not move the buffer position
+
+		write(fileName, buffer);
+	}
+
+
+
+	public static void writeChanges(String fileName, Memory initial, Memory memory) throws IOException{
+
+		int changes = 0;
+		for(int i=0;i<memory.size();i++){
+			if(!memory.same(i, initial)) changes++;
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate(HEADER_BYTES + changes * (4 + CELL_BYTES));
+		buffer.putInt(CHANGES_MAGIC);
+		buffer.putInt(changes);
+		for(int i=0;i<memory.size();i++){
+			if(!memory.same(i, initial)){
+				buffer.putInt(i);
+				buffer.putInt(memory.type[i]).putInt(memory.data[i]).putInt(memory.address[i]).putInt(memory.time[i]);
+			}
+		}
+		buffer.flip();
+
+		write(fileName, buffer);
+	}
+
+
+
+	// one "address instruction" line per cell, or per changed cell if initial is given
+	public static void writeText(Writer out, Memory memory, Memory initial) throws IOException{
+
+		for(int i=0;i<memory.size();i++){
+			if(initial == null || !memory.same(i, initial)){
+				out.write(i + " " + memory.toString(i) + "\n");
+			}
+		}
+	}
+
+
+
+	private static void write(String fileName, ByteBuffer buffer) throws IOException{
+
+		RandomAccessFile file = new RandomAccessFile(fileName, "rw");
+		try{
+			file.setLength(0);
+			FileChannel channel = file.getChannel();
+			while(buffer.hasRemaining()){
+				channel.write(buffer);
+			}
+		}
+		finally{
+			file.close();
+		}
+	}
+
+
+
+	// converts a text memory file into a binary image, uninitialised cells as in MemoryController
+	public static void main(String[] args) throws IOException{
+
+		if(args.length != 2){
+			System.err.println("Usage: MemoryImage <memory.txt> <memory image>");
+			System.exit(1);
+		}
+
+		Memory memory = MemoryController.emptyMemory();
+		readText(args[0], memory);
+		writeImage(args[1], memory);
+
+		System.out.println("Wrote " + memory.size() + " cells to " + new File(args[1]).getPath());
+	}
+
+}
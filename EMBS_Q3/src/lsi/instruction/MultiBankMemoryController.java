@@ -0,0 +1,105 @@
+package lsi.instruction;
+
+/*
+ *
+ * Actor represents a 16-bit word Memory split into banks that can be accessed in the same cycle, and its controller.
+ *
+ * It behaves as a MemoryController with one independent port per bank: its input and output ports are multiports,
+ * and channel b of each serves bank b. A read requested on a channel is answered on the same channel on the next
+ * clock cycle, as with MemoryController, while reads and writes on other channels proceed alongside. Which addresses
+ * belong to which bank is up to the interconnect in front of it (see CrossbarBus); the controller holds the whole
+ * memory, loaded and dumped as a single image.
+ *
+ */
+
+import java.util.Arrays;
+
+import ptolemy.actor.util.Time;
+import ptolemy.kernel.CompositeEntity;
+import ptolemy.kernel.util.IllegalActionException;
+import ptolemy.kernel.util.NameDuplicationException;
+
+@SuppressWarnings("serial")
+public class MultiBankMemoryController extends MemoryController {
+
+
+	protected int banks;
+	protected int[] readAddresses; // per bank, -1 if no read is pending
+
+
+
+	public MultiBankMemoryController(CompositeEntity container, String name)
+			throws NameDuplicationException, IllegalActionException  {
+
+		super(container, name);
+
+		// one channel per bank
+		input.setMultiport(true);
+		output.setMultiport(true);
+	}
+
+
+
+	@Override
+	public void initialize() throws IllegalActionException{
+
+		super.initialize();
+
+		banks = input.getWidth();
+		readAddresses = new int[banks];
+		Arrays.fill(readAddresses, -1);
+	}
+
+
+
+	@Override
+	public void fire()throws IllegalActionException{
+
+
+		if(clk.hasToken(0)){
+
+			clk.get(0); // consume clock token
+
+			for(int b=0;b<banks;b++){
+				if(readAddresses[b]!=-1){ //if a read has been requested from the bank, perform it
+
+					output.send(b, getToken(readAddresses[b]).toToken(records)); // sends back the content of the requested memory address
+					readAddresses[b]=-1;  // confirm that read has been performed
+				}
+			}
+		}
+
+		// receive requests
+
+		else{
+
+			for(int b=0;b<banks;b++){
+
+				if(input.hasToken(b)){
+
+					InstructionToken t = InstructionToken.convert(input.get(b));
+					if(t.type==Instruction.READ){  // set address to be read and sent back on the next clock cycle
+						readAddresses[b] = t.address;
+					}
+					else if(t.type==Instruction.WRITE){ // write to memory immediately
+						memory.write(t.address, t.data);  // write to memory
+						tokenCache[t.address] = null; // rebuilt on the next read
+					}
+				}
+			}
+		}
+
+	}
+
+
+
+	@Override
+	public Time getIdleUntil(){
+
+		for(int b=0;b<banks;b++){
+			if(readAddresses[b]!=-1) return null;
+		}
+		return Time.POSITIVE_INFINITY;
+	}
+
+}
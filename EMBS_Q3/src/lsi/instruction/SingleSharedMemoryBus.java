@@ -4,13 +4,22 @@ package lsi.instruction;
  * 
  * Actor represents a bus with separate 16-bit address and data lines connecting masters to a single shared memory.
  *
- * It serves an arbitrary number of masters connected to its input and output ports. It accepts RecordToken instances
- * following the standard format defined in lsi.instruction.Instruction. A single token can encapsulate the contents driven 
- * to its address and/data lines, as well as the arbitration, write and read request signals. Likewise, it uses RecordToken
- * instances to implicitly represent grant and acknowledge signals.
+ * It serves an arbitrary number of masters connected to its input and output ports. It accepts InstructionToken or 
+ * RecordToken instances following the standard format defined in lsi.instruction.Instruction. A single token can encapsulate 
+ * the contents driven to its address and/data lines, as well as the arbitration, write and read request signals. Likewise, 
+ * it uses instruction tokens to implicitly represent grant and acknowledge signals. These are sent as InstructionTokens, 
+ * or as RecordTokens if the "record tokens" parameter is set.
  * 
- * Arbitration of requests is based on fixed priorities, with master at input channel 0 having the highest priority and the 
- * master at input channel n with the lowest priority (where n+1 is the number of masters).
+ * Arbitration of requests follows the policy named by the "arbitration" parameter (see ArbitrationPolicy): fixed 
+ * priority (the default), with master at input channel 0 having the highest priority and the master at input channel n 
+ * with the lowest priority (where n+1 is the number of masters), round robin, TDMA slots, weighted lottery or least 
+ * recently granted. Subclasses can plug in other policies through createArbitrationPolicy. The number of grants to 
+ * each master is available through getGrants.
+ * 
+ * For each master the bus also records, in LatencyHistograms, the cycles from its first arbitration request to the 
+ * GRANT (getRequestLatency) and, for reads, from the GRANT to the DATA (getDataLatency), along with the number of 
+ * cycles its requests were denied (getDeniedCycles). These can be queried during a run, and are printed on wrapup 
+ * to standard error, apart from the memory dump, if the "latency report" parameter is set (false by default).
  * 
  * Once given arbitration to a master, the bus forwards its request to the shared memory via its toMemory port and, 
  * in case of a READ transaction, waits for a response on its fromMemory port.
@@ -21,30 +30,68 @@ package lsi.instruction;
  * - data bus state: upon a change, outputs the state of the data sub-bus, in a string representing a 16-bit binary value 
  * - address bus state: upon a change, outputs the state of the address sub-bus, in a string representing a 16-bit binary value 
  * 
+ * The bus needs no clock ticks while it has nothing to send, and reports so to a GatedClock (see ClockGated).
+ * 
+ * The width of both sub-buses is set by the "bus width" parameter (16 by default), from 1 to 31 bits: addresses
+ * and data are ints, and a negative one must still show as ERROR. Bus state tokens are taken from the shared
+ * BusStateTokens table rather than built on every transaction.
+ * 
+ * If the "split transactions" parameter is set, a READ no longer holds the bus until its DATA returns: once its 
+ * request is sent to memory the address sub-bus is arbitrated again, so the address phase of the next request 
+ * overlaps the data phase of the previous one. Each read sent to memory is tagged with its master, and as memory 
+ * answers in order, each response goes to the master at the head of the queue of tags. A WRITE, whose data goes on the 
+ * data sub-bus along with its address, waits a cycle if a read response takes the data sub-bus on the same cycle.
+ * 
+ * Requests received on a cycle are gathered once into a bitset, one bit per master, which is what the arbitration 
+ * policy works on; only the requests found are then read from the input channels.
+ * 
  */
 
+import java.util.Arrays;
+
 import ptolemy.actor.TypedAtomicActor;
 import ptolemy.actor.TypedIOPort;
 import ptolemy.actor.util.Time;
+import ptolemy.data.BooleanToken;
 import ptolemy.data.DoubleToken;
 import ptolemy.data.IntToken;
-import ptolemy.data.RecordToken;
 import ptolemy.data.StringToken;
 import ptolemy.data.expr.Parameter;
+import ptolemy.data.expr.StringParameter;
 import ptolemy.data.type.BaseType;
 import ptolemy.kernel.CompositeEntity;
+import ptolemy.kernel.util.Attribute;
 import ptolemy.kernel.util.IllegalActionException;
 import ptolemy.kernel.util.NameDuplicationException;
 
 
 @SuppressWarnings("serial")
-public class SingleSharedMemoryBus extends TypedAtomicActor {
+public class SingleSharedMemoryBus extends TypedAtomicActor implements ClockGated {
 
 	protected int activeMaster, masters;
-	protected int[] currentArbitrationRequests;
+	protected long[] currentArbitrationRequests; // bitset, see ArbitrationPolicy
 	protected IntToken[] debugTokens;
-
-	protected RecordToken toSend;
+	protected Parameter busWidth;
+	protected Parameter recordTokens;
+	protected boolean records;
+	protected int width;
+	protected StringParameter arbitration;
+	protected ArbitrationPolicy policy;
+	protected long[] grants;
+	protected double clockPeriod; // 0 if unknown
+	protected long clocks; // clock tokens received, to number cycles when the period is unknown
+	protected Parameter latencyReport;
+	protected LatencyHistogram[] requestLatency, dataLatency;
+	protected long[] deniedCycles;
+	protected long[] requestStart; // cycle of the first request still waiting for a GRANT, -1 if none
+	protected long[] grantCycle; // cycle the GRANT of the current read of each master was sent on
+	protected Parameter splitTransactions;
+	protected boolean split;
+	protected InstructionToken response; // split transactions: data from memory, sent over the next clock cycle
+	protected int[] pendingReads; // split transactions: queue of the masters of reads sent to memory, oldest first
+	protected int pendingHead, pendingCount;
+
+	protected InstructionToken toSend;
 	protected Time sendTime;
 	protected boolean toMaster;
 
@@ -70,12 +117,12 @@ public class SingleSharedMemoryBus extends TypedAtomicActor {
 		output.setMultiport(true);
 
 		
-		// all ports handle RecordToken following the format 
+		// all ports handle instruction tokens following the format 
 		// defined within the lsi.instruction.Instruction class
-		input.setTypeEquals(Instruction.getTokenType());
-		output.setTypeEquals(Instruction.getTokenType());
-		fromMemory.setTypeEquals(Instruction.getTokenType());
-		toMemory.setTypeEquals(Instruction.getTokenType());
+		recordTokens = new Parameter(this, "record tokens");
+		recordTokens.setTypeEquals(BaseType.BOOLEAN);
+		recordTokens.setExpression("false");
+		InstructionToken.setPortTypes(false, new TypedIOPort[]{input, fromMemory}, new TypedIOPort[]{output, toMemory});
 
 
 		// state ports, outputs the current state of each sub-bus
@@ -94,10 +141,48 @@ public class SingleSharedMemoryBus extends TypedAtomicActor {
 		debug.setTypeEquals(BaseType.INT);
 
 
+		// width of the address and data sub-buses
+		busWidth = new Parameter(this, "bus width");
+		busWidth.setTypeEquals(BaseType.INT);
+		busWidth.setExpression("16");
+
+
+		// arbitration policy, see ArbitrationPolicy
+		arbitration = new StringParameter(this, "arbitration");
+		arbitration.addChoice(ArbitrationPolicy.FIXED_PRIORITY);
+		arbitration.addChoice(ArbitrationPolicy.ROUND_ROBIN);
+		arbitration.addChoice(ArbitrationPolicy.TDMA);
+		arbitration.addChoice(ArbitrationPolicy.LOTTERY);
+		arbitration.addChoice(ArbitrationPolicy.LEAST_RECENTLY_GRANTED);
+		arbitration.setExpression(ArbitrationPolicy.FIXED_PRIORITY);
+
+
+		// latency statistics printed on wrapup
+		latencyReport = new Parameter(this, "latency report");
+		latencyReport.setTypeEquals(BaseType.BOOLEAN);
+		latencyReport.setExpression("false");
+
+
+		// overlap the address phase of a request with the data phase of the previous read
+		splitTransactions = new Parameter(this, "split transactions");
+		splitTransactions.setTypeEquals(BaseType.BOOLEAN);
+		splitTransactions.setExpression("false");
 
 	}
 
 
+	public void attributeChanged(Attribute attribute) throws IllegalActionException{
+
+		if(attribute == recordTokens){
+			records = ((BooleanToken)recordTokens.getToken()).booleanValue();
+			InstructionToken.setPortTypes(records, new TypedIOPort[]{input, fromMemory}, new TypedIOPort[]{output, toMemory});
+		}
+		else{
+			super.attributeChanged(attribute);
+		}
+	}
+
+
 	public void initialize() throws IllegalActionException{
 
 		super.initialize();
@@ -105,7 +190,40 @@ public class SingleSharedMemoryBus extends TypedAtomicActor {
 
 		masters=input.getWidth(); // number of masters obtained from the width of the input multiport
 
-		currentArbitrationRequests = new int[masters]; // instantiate an array to handle arbitration requests
+		width = ((IntToken)busWidth.getToken()).intValue();
+		if(width < 1 || width > BusStateTokens.MAX_INT_WIDTH){
+			throw new IllegalActionException(this, "Bus width must be between 1 and " + BusStateTokens.MAX_INT_WIDTH + ": " + width);
+		}
+
+		currentArbitrationRequests = new long[ArbitrationPolicy.requestWords(masters)]; // instantiate a bitset to handle arbitration requests
+
+		policy = createArbitrationPolicy();
+		try{
+			policy.initialize(masters);
+		}
+		catch(IllegalArgumentException e){
+			throw new IllegalActionException(this, e, "Invalid arbitration policy");
+		}
+		grants = new long[masters];
+		clockPeriod = GatedClock.period(clk);
+		clocks = 0;
+
+		requestLatency = new LatencyHistogram[masters];
+		dataLatency = new LatencyHistogram[masters];
+		for(int i=0;i<masters;i++){
+			requestLatency[i] = new LatencyHistogram();
+			dataLatency[i] = new LatencyHistogram();
+		}
+		deniedCycles = new long[masters];
+		requestStart = new long[masters];
+		Arrays.fill(requestStart, -1);
+		grantCycle = new long[masters];
+
+		split = ((BooleanToken)splitTransactions.getToken()).booleanValue();
+		pendingReads = new int[masters]; // a master has at most one read in flight
+		pendingHead = 0;
+		pendingCount = 0;
+		response = null;
 
 		// create one token per master, to be sent out via debug port
 		// avoids creating new tokens, lower memory and processing overheads
@@ -127,34 +245,36 @@ public class SingleSharedMemoryBus extends TypedAtomicActor {
 
 	public void fire() throws IllegalActionException{
 
+		// gather the arbitration requests received on the current cycle
+		Arrays.fill(currentArbitrationRequests, 0);
+		for(int i=0;i<masters;i++){
+
+			if(input.hasToken(i)) currentArbitrationRequests[i >>> 6] |= 1L << i;
+
+		}
 
 		if(clk.hasToken(0)){
 
 			clk.get(0); // consume clock token
+			clocks++;
 
-			if(toSend!=null){  // data driven to the bus needs to be sent to destination
+			if(split){
+				sendSplit();
+			}
+			else if(toSend!=null){  // data driven to the bus needs to be sent to destination
 
 				if(toMaster){ // if second phase of a read transaction
 					
-					output.send(activeMaster, toSend); // send response to active master
-					debug.send(0,debugTokens[masters]); // send out debug info
-					dataBusState.send(0, new StringToken(getDataBusCurrentState(toSend))); // outputs new data bus state
+					sendResponse(activeMaster, toSend, 0); // send response to active master
 					activeMaster=-1; 	// finish transaction
 
 				}
 				else{        // else, first phase of a read or write transaction
-					toMemory.send(0, toSend); // send request to memory
-					output.send(activeMaster, toSend); // GRANT signal - sends back a token to the successful master to confirm it was granted arbitration
-					debug.send(0, debugTokens[activeMaster]); // send out debug info
-					addressBusState.send(0,  new StringToken(getAddressBusCurrentState(toSend))); // // outputs new address bus state
+					sendRequest(activeMaster, toSend, 0);
 
 					// if request is a WRITE, close the transaction right after sending it to memory
-					int type = ((IntToken)toSend.get("type")).intValue();
-					if(type==Instruction.WRITE){ 
+					if(toSend.type==Instruction.WRITE){ 
 						activeMaster=-1;  
-						dataBusState.send(0,  new StringToken(getDataBusCurrentState(toSend))); // // outputs new data bus state
-
-						
 					}
 
 				}
@@ -164,11 +284,22 @@ public class SingleSharedMemoryBus extends TypedAtomicActor {
 			}
 		}
 
+		else if(split){     // memory responses and arbitration proceed independently
+
+			if(fromMemory.hasToken(0)){
+				// send data from memory to the master of the oldest pending read over the next clock cycle
+				response = InstructionToken.convert(fromMemory.get(0));
+			}
+
+			if(activeMaster==-1) arbitrate();
+
+		}
+
 		else if(activeMaster!=-1){     //transaction ongoing, check if there's data from memory to be sent
 
 			if(fromMemory.hasToken(0)){
 				// send data from memory to active master over the next clock cycle
-				toSend = (RecordToken) fromMemory.get(0);
+				toSend = InstructionToken.convert(fromMemory.get(0));
 				toMaster=true;
 
 			}
@@ -177,60 +308,193 @@ public class SingleSharedMemoryBus extends TypedAtomicActor {
 
 		else {   // no ongoing transactions, process arbitration requests
 
-			for(int i=0;i<masters;i++){
+			arbitrate();
+
+		}
 
-				if(input.hasToken(i)) currentArbitrationRequests[i]=1;
-				else currentArbitrationRequests[i]=0;
+		// discard all remaining arbitration requests received on the current cycle, these are denied
+		long cycle = -1;
+		for(int i=ArbitrationPolicy.nextRequest(currentArbitrationRequests, 0);i!=-1;i=ArbitrationPolicy.nextRequest(currentArbitrationRequests, i+1)){
 
-			}
+			input.get(i);
+			if(cycle==-1) cycle = currentCycle();
+			if(requestStart[i]==-1) requestStart[i] = cycle; // first request of the master
+			deniedCycles[i]++;
 
-			activeMaster = performArbitration();
+		}
 
-			if(activeMaster!=-1){ // if there's a successful request
+	}
 
-				toSend = (RecordToken)input.get(activeMaster); // queue a read request over the next clock cycle
-				toMaster=false;  // read request should be sent to memory
 
-			}
+
+	// grants the bus to the master chosen by the arbitration policy, if any, queueing its request
+	protected void arbitrate() throws IllegalActionException{
+
+		activeMaster = performArbitration();
+
+		if(activeMaster!=-1){ // if there's a successful request
+
+			toSend = InstructionToken.convert(input.get(activeMaster)); // queue a read request over the next clock cycle
+			currentArbitrationRequests[activeMaster >>> 6] &= ~(1L << activeMaster);
+			if(requestStart[activeMaster]==-1) requestStart[activeMaster] = currentCycle(); // granted on its first request
+			toMaster=false;  // read request should be sent to memory
+
 		}
+	}
 
-		// discard all remaining arbitration requests received on the current cycle
-		for(int i=0;i<masters;i++){
 
-			if(input.hasToken(i)) input.get(i);
 
+	// first phase of a transaction: the request goes to memory, and the GRANT to the master, on the given channel
+	protected void sendRequest(int master, InstructionToken request, int channel) throws IllegalActionException{
+
+		toMemory.send(channel, request.toToken(records)); // send request to memory
+		output.send(master, request.toToken(records)); // GRANT signal - sends back a token to the successful master to confirm it was granted arbitration
+		grants[master]++;
+		grantCycle[master] = currentCycle();
+		requestLatency[master].record(grantCycle[master] - requestStart[master]);
+		requestStart[master] = -1;
+		debug.send(0, debugTokens[master]); // send out debug info
+		addressBusState.send(channel, getAddressBusCurrentStateToken(request)); // outputs new address bus state
+
+		if(request.type==Instruction.WRITE){ 
+			dataBusState.send(channel, getDataBusCurrentStateToken(request)); // outputs new data bus state
 		}
+	}
+
+
+
+	// second phase of a read: data from memory goes to the master, driven on the data bus of the given channel
+	protected void sendResponse(int master, InstructionToken response, int channel) throws IllegalActionException{
 
+		output.send(master, response.toToken(records)); // send response to the master
+		dataLatency[master].record(currentCycle() - grantCycle[master]);
+		debug.send(0,debugTokens[masters]); // send out debug info
+		dataBusState.send(channel, getDataBusCurrentStateToken(response)); // outputs new data bus state
 	}
 
 
 
-	protected int performArbitration(){
+	// split transactions: on a clock, send the pending read response and the queued request, which can overlap
+	protected void sendSplit() throws IllegalActionException{
 
-		for(int i=0; i<currentArbitrationRequests.length;i++){
+		boolean dataBusTaken = false;
 
-			if(currentArbitrationRequests[i]==1) return i;   // performs fixed priority arbitration, with 0 as the highest priority
+		if(response!=null){ // data phase of the oldest pending read
 
+			int master = pendingReads[pendingHead];
+			pendingHead = (pendingHead+1) % pendingReads.length;
+			pendingCount--;
+
+			sendResponse(master, response, 0); // send response to the master it is tagged with
+			response=null;
+			dataBusTaken=true;
 		}
 
-		return -1;
+		if(toSend!=null && !(dataBusTaken && toSend.type==Instruction.WRITE)){ // address phase, a WRITE waits for a free data sub-bus
 
+			sendRequest(activeMaster, toSend, 0);
+			if(toSend.type!=Instruction.WRITE){ // tag the read, its response comes back later
+				pendingReads[(pendingHead+pendingCount) % pendingReads.length] = activeMaster;
+				pendingCount++;
+			}
+			toSend=null;
+			activeMaster=-1; // address sub-bus free for the next request
+		}
 	}
 
 
 
-	protected String getDataBusCurrentState(RecordToken token){
-		int data = ((IntToken)token.get("data")).intValue();
-		if(data > 65535 || data < 0) return "ERROR";
-		else return Integer.toBinaryString(0x10000 | data).substring(1); // adds zero padding by adding then removing a 1 in the 17th place
-		
+	// requests and memory responses arrive on clocks driven by their senders, only sending needs one
+	public Time getIdleUntil(){
+
+		return toSend==null && response==null ? Time.POSITIVE_INFINITY : null;
+	}
+
+
+
+	protected int performArbitration() throws IllegalActionException{
+
+		if(ArbitrationPolicy.nextRequest(currentArbitrationRequests, 0)==-1) return -1; // no requests, the policy is only asked on cycles with some
+
+		return policy.arbitrate(currentArbitrationRequests, currentCycle());
+
+	}
+
+
+
+	// policy named by the arbitration parameter, subclasses can override to plug in their own
+	protected ArbitrationPolicy createArbitrationPolicy() throws IllegalActionException{
+
+		try{
+			return ArbitrationPolicy.forName(arbitration.stringValue());
+		}
+		catch(IllegalArgumentException e){
+			throw new IllegalActionException(this, e, "Invalid arbitration policy");
+		}
+	}
+
+
+
+	// number of the current clock cycle, counted from the model start time
+	protected long currentCycle() throws IllegalActionException{
+
+		if(clockPeriod > 0){
+			return Math.round(getDirector().getModelTime().subtract(getDirector().getModelStartTime()).getDoubleValue() / clockPeriod);
+		}
+		return clocks - 1;
+	}
+
+
+
+	public long getGrants(int master){
+		return grants[master];
+	}
+
+	public long getDeniedCycles(int master){
+		return deniedCycles[master];
+	}
+
+	// cycles from the first request of a master to its GRANT
+	public LatencyHistogram getRequestLatency(int master){
+		return requestLatency[master];
+	}
+
+	// cycles from the GRANT of a read by a master to its DATA
+	public LatencyHistogram getDataLatency(int master){
+		return dataLatency[master];
+	}
+
+
+
+	public void wrapup() throws IllegalActionException{
+
+		super.wrapup();
+
+		if(((BooleanToken)latencyReport.getToken()).booleanValue()){
+			System.err.println(getName() + " latencies (cycles):");
+			for(int i=0;i<masters;i++){
+				System.err.println("master " + i + ": " + grants[i] + " grants, " + deniedCycles[i] + " denied cycles, "
+						+ "request to grant " + requestLatency[i] + ", grant to data " + dataLatency[i]);
+			}
+		}
+	}
+
+
+
+	protected String getDataBusCurrentState(InstructionToken token){
+		return getDataBusCurrentStateToken(token).stringValue();
 	}
 	
-	protected String getAddressBusCurrentState(RecordToken token){
-		int add = ((IntToken)token.get("address")).intValue();
-		if(add > 65535 || add < 0) return "ERROR";
-		else return Integer.toBinaryString(0x10000 | add).substring(1); // adds zero padding by adding then removing a 1 in the 17th place
-		
+	protected String getAddressBusCurrentState(InstructionToken token){
+		return getAddressBusCurrentStateToken(token).stringValue();
+	}
+	
+	protected StringToken getDataBusCurrentStateToken(InstructionToken token){
+		return BusStateTokens.get(token.data, width); // shared token, zero padded to the bus width, or ERROR if out of range
+	}
+	
+	protected StringToken getAddressBusCurrentStateToken(InstructionToken token){
+		return BusStateTokens.get(token.address, width); // shared token, zero padded to the bus width, or ERROR if out of range
 	}
 	
 	